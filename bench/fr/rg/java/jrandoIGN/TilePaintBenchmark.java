@@ -0,0 +1,159 @@
+package fr.rg.java.jrandoIGN;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Mesure du temps d'affichage d'une fenêtre de tuiles selon le format des
+ * images: format choisi par le décodeur JPEG (TYPE_3BYTE_BGR) ou format de
+ * l'écran obtenu avec TileFetcher.toCompatible().
+ *
+ * <p>
+ * Cet outil de mesure ne fait pas partie de l'application: il est rangé dans
+ * le répertoire bench/ et se compile avec les sources de l'application.
+ * Utilisation:
+ * <pre>
+ * javac -d out src/fr/rg/java/jrandoIGN/*.java bench/fr/rg/java/jrandoIGN/*.java
+ * java -cp out:src fr.rg.java.jrandoIGN.TilePaintBenchmark [nombre d'images]
+ *     [source zoom ligne colonne]
+ * </pre>
+ * Les fenêtres de 3x3 à 7x7 tuiles sont dessinées, avec l'interpolation
+ * bicubique et un facteur de zoom comme dans IGNMap, dans une image
+ * volatile de l'écran (ou une image TYPE_INT_RGB sans écran).
+ *
+ * <p>
+ * Les tuiles sont synthétiques, ou lues depuis une source locale
+ * (répertoire ou fichier .mbtiles, voir TileFetcher.createSource()) à partir
+ * de la tuile indiquée: les mesures portent alors sur des images réelles et
+ * reproductibles.
+ */
+public class TilePaintBenchmark {
+
+    private static final int TILE_PIXEL_DIM = 256;
+    private static final double SCALE = 1.3;
+
+    /**
+     * Point d'entrée de l'outil.
+     *
+     * @param args nombre d'images dessinées par mesure (50 par défaut),
+     * source locale, zoom, ligne et colonne de la première tuile
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        TileSource source = null;
+        int zoom = 0, row = 0, col = 0;
+        if (args.length > 4) {
+            source = TileFetcher.createSource(args[1]);
+            if (source.isRemote()) {
+                System.err.println("Source locale attendue: " + args[1]);
+                System.exit(1);
+            }
+            zoom = Integer.parseInt(args[2]);
+            row = Integer.parseInt(args[3]);
+            col = Integer.parseInt(args[4]);
+            System.out.println("Tuiles: " + source.getName());
+        }
+        GraphicsConfiguration gc = TileFetcher.getScreenConfig();
+        System.out.println("Écran: " + (gc == null ? "aucun" : gc.getColorModel()));
+        System.out.println("Fenêtre   JPEG (ms/image)   compatible (ms/image)   gain");
+
+        for (int n = 3; n <= 7; n++) {
+            BufferedImage[] decoded = new BufferedImage[n * n];
+            BufferedImage[] compatible = new BufferedImage[n * n];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = source == null ? null : readTile(source,
+                        TileKey.of(TileKey.LAYER_MAPS, zoom, row + i / n, col + i % n));
+                if (decoded[i] == null) {
+                    decoded[i] = createTile(i);
+                }
+                compatible[i] = TileFetcher.toCompatible(decoded[i]);
+            }
+
+            int dim = n * TILE_PIXEL_DIM;
+            double tDecoded = paint(gc, dim, decoded, n, frames);
+            double tCompatible = paint(gc, dim, compatible, n, frames);
+            System.out.printf("%dx%d      %10.2f          %10.2f            x%.1f%n",
+                    n, n, tDecoded, tCompatible, tDecoded / tCompatible);
+        }
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    /**
+     * Tuile lue depuis une source locale.
+     *
+     * @return image décodée ou null si la source ne contient pas la tuile
+     */
+    private static BufferedImage readTile(TileSource source, long key) throws IOException {
+        ByteBuffer data = source.getTile(key);
+        return data == null ? null : TileFetcher.decode(data);
+    }
+
+    /**
+     * Tuile synthétique au format produit par le décodeur JPEG.
+     */
+    private static BufferedImage createTile(int seed) {
+        BufferedImage img = new BufferedImage(TILE_PIXEL_DIM, TILE_PIXEL_DIM,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(seed * 37 % 256, 180, 120),
+                TILE_PIXEL_DIM, TILE_PIXEL_DIM, new Color(90, seed * 53 % 256, 200)));
+        g.fillRect(0, 0, TILE_PIXEL_DIM, TILE_PIXEL_DIM);
+        g.setColor(Color.DARK_GRAY);
+        for (int i = 0; i < TILE_PIXEL_DIM; i += 16) {
+            g.drawLine(i, 0, TILE_PIXEL_DIM - i, TILE_PIXEL_DIM);
+        }
+        g.dispose();
+        return img;
+    }
+
+    /**
+     * Durée moyenne (ms) du dessin de la fenêtre de tuiles.
+     */
+    private static double paint(GraphicsConfiguration gc, int dim,
+            BufferedImage[] tiles, int n, int frames) {
+        VolatileImage vi = null;
+        BufferedImage bi = null;
+        if (gc != null) {
+            vi = gc.createCompatibleVolatileImage(dim, dim, Transparency.OPAQUE);
+        } else {
+            bi = new BufferedImage(dim, dim, BufferedImage.TYPE_INT_RGB);
+        }
+
+        long elapsed = 0;
+        for (int f = -5; f < frames; f++) { // (5 images de chauffe)
+            if (vi != null && vi.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                vi = gc.createCompatibleVolatileImage(dim, dim, Transparency.OPAQUE);
+            }
+            Graphics2D g = vi != null ? vi.createGraphics() : bi.createGraphics();
+            long start = System.nanoTime();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.scale(SCALE, SCALE);
+            for (int r = 0; r < n; r++) {
+                for (int c = 0; c < n; c++) {
+                    g.drawImage(tiles[r * n + c], c * TILE_PIXEL_DIM,
+                            r * TILE_PIXEL_DIM, null);
+                }
+            }
+            // Attendre la fin du dessin
+            Toolkit.getDefaultToolkit().sync();
+            if (f >= 0) {
+                elapsed += System.nanoTime() - start;
+            }
+            g.dispose();
+        }
+        return elapsed / 1e6 / frames;
+    }
+}
@@ -0,0 +1,206 @@
+package fr.rg.java.jrandoIGN;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import javax.imageio.ImageIO;
+
+/**
+ * Vérification des requêtes conditionnelles de TileFetcher auprès d'un
+ * service WMTS local (com.sun.net.httpserver) qui simule celui de l'IGN.
+ *
+ * <p>
+ * Comme TilePaintBenchmark, cet outil ne fait pas partie de l'application.
+ * Utilisation:
+ * <pre>
+ * javac -d out src/fr/rg/java/jrandoIGN/*.java bench/fr/rg/java/jrandoIGN/*.java
+ * java -cp out:src fr.rg.java.jrandoIGN.WmtsRevalidationCheck
+ * </pre>
+ * Une tuile est téléchargée (réponse 200), puis revalidée sans changement
+ * (requête conditionnelle, réponse 304: les octets du cache disque sont
+ * conservés), enfin revalidée après modification sur le serveur (réponse 200:
+ * nouvelles données et nouveaux en-têtes ETag et Last-Modified dans le
+ * cache). Le code de sortie est 1 si l'une des vérifications échoue.
+ */
+public class WmtsRevalidationCheck {
+
+    private static final long KEY = TileKey.of(TileKey.LAYER_MAPS, 15, 11_270, 16_600);
+
+    /**
+     * Service WMTS local: une seule version de tuile à la fois, répond 304
+     * si If-None-Match désigne la version courante.
+     */
+    private static final class StandIn implements HttpHandler {
+
+        volatile byte[] tile;
+        volatile String etag;
+        volatile long lastModified; // (ms, arrondi à la seconde)
+        final List<String> log = new ArrayList<>(); // statut et en-têtes reçus
+
+        void update(byte[] tile, String etag, long lastModified) {
+            this.tile = tile;
+            this.etag = etag;
+            this.lastModified = lastModified / 1000 * 1000;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            int code = etag.equals(ifNoneMatch) ? 304 : 200;
+            synchronized (log) {
+                log.add(code + " If-None-Match=" + ifNoneMatch
+                        + " If-Modified-Since=" + ifModifiedSince);
+            }
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Last-Modified", httpDate(lastModified));
+            if (code == 304) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+                exchange.sendResponseHeaders(200, tile.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(tile);
+                }
+            }
+            exchange.close();
+        }
+
+        String lastRequest() {
+            synchronized (log) {
+                return log.isEmpty() ? "aucune requête" : log.get(log.size() - 1);
+            }
+        }
+    }
+
+    private static int failures = 0;
+
+    /**
+     * Point d'entrée de l'outil.
+     *
+     * @param args inutilisés
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        StandIn standIn = new StandIn();
+        long t0 = System.currentTimeMillis() - 3_600_000;
+        byte[] v1 = createTile(Color.GREEN);
+        byte[] v2 = createTile(Color.ORANGE);
+        standIn.update(v1, "\"v1\"", t0);
+
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/wmts", standIn);
+        server.start();
+        File dir = Files.createTempDirectory("wmts-check").toFile();
+        try {
+            TilePackStore store = TilePackStore.open(dir);
+            TileFetcher fetcher = new TileFetcher(1);
+            fetcher.setWmtsUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/wmts");
+
+            // 1. Premier téléchargement
+            ByteBuffer data = fetcher.download(KEY, store);
+            check("téléchargement: réponse 200", standIn.lastRequest().startsWith("200 "),
+                    standIn.lastRequest());
+            check("téléchargement: octets de la tuile", equal(data, v1), null);
+            check("téléchargement: ETag mémorisé", "\"v1\"".equals(store.getETag(KEY)),
+                    store.getETag(KEY));
+            check("téléchargement: Last-Modified mémorisé",
+                    store.getLastModified(KEY) == standIn.lastModified,
+                    new Date(store.getLastModified(KEY)).toString());
+
+            // 2. Revalidation d'une tuile inchangée
+            data = fetcher.revalidate(KEY, store);
+            check("revalidation: requête conditionnelle",
+                    standIn.lastRequest().contains("If-None-Match=\"v1\"")
+                    && !standIn.lastRequest().contains("If-Modified-Since=null"),
+                    standIn.lastRequest());
+            check("revalidation: réponse 304", standIn.lastRequest().startsWith("304 ")
+                    && data == null, standIn.lastRequest());
+            check("revalidation: octets du cache conservés", equal(store.get(KEY), v1), null);
+            check("revalidation: réponse comptée (notModified)",
+                    fetcher.getMetrics().getNotModified() == 1,
+                    Long.toString(fetcher.getMetrics().getNotModified()));
+
+            // 3. Revalidation d'une tuile modifiée sur le serveur
+            standIn.update(v2, "\"v2\"", t0 + 1_800_000);
+            data = fetcher.revalidate(KEY, store);
+            check("modification: réponse 200", standIn.lastRequest().startsWith("200 "),
+                    standIn.lastRequest());
+            check("modification: nouvelles données", equal(data, v2)
+                    && equal(store.get(KEY), v2), null);
+            check("modification: nouvel ETag", "\"v2\"".equals(store.getETag(KEY)),
+                    store.getETag(KEY));
+            check("modification: nouveau Last-Modified",
+                    store.getLastModified(KEY) == standIn.lastModified,
+                    new Date(store.getLastModified(KEY)).toString());
+            store.flush(); // (crée tous les fichiers du cache)
+        } finally {
+            server.stop(0);
+            // Suppression après la dernière écriture du cache (crochet d'arrêt)
+            dir.deleteOnExit();
+            for (File f : dir.listFiles()) {
+                f.deleteOnExit();
+            }
+        }
+        System.out.println(failures == 0 ? "Toutes les vérifications ont réussi"
+                : failures + " vérification(s) en échec");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String what, boolean ok, String detail) {
+        System.out.println((ok ? "OK     " : "ÉCHEC  ") + what
+                + (ok || detail == null ? "" : " (" + detail + ")"));
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    private static boolean equal(ByteBuffer data, byte[] expected) {
+        if (data == null) {
+            return false;
+        }
+        byte[] b = new byte[data.remaining()];
+        data.duplicate().get(b);
+        return Arrays.equals(b, expected);
+    }
+
+    /**
+     * Tuile JPEG unie.
+     */
+    private static byte[] createTile(Color color) throws IOException {
+        BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 256, 256);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private static String httpDate(long t) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(t));
+    }
+}
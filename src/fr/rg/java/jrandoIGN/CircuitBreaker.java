@@ -0,0 +1,190 @@
+package fr.rg.java.jrandoIGN;
+
+/**
+ * Disjoncteur protégeant un serveur défaillant.
+ *
+ * <p>
+ * Après un nombre donné d'échecs consécutifs, le disjoncteur s'ouvre: les
+ * requêtes sont refusées immédiatement pendant une durée qui double à chaque
+ * nouvelle ouverture (dans la limite d'un maximum). Une fois cette durée
+ * écoulée, une seule requête d'essai est autorisée: son succès referme le
+ * disjoncteur, son échec le rouvre. Le serveur peut aussi imposer lui-même
+ * une ouverture (suspend).
+ */
+public class CircuitBreaker {
+
+    /**
+     * États du disjoncteur.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Notification des changements d'état.
+     */
+    public interface Listener {
+
+        /**
+         * Le disjoncteur vient de changer d'état (appelée depuis le thread de
+         * la requête, sous le verrou du disjoncteur: ne doit pas bloquer).
+         *
+         * @param state nouvel état
+         */
+        void stateChanged(State state);
+    }
+
+    private final int failureThreshold;
+    private final long minOpenDelay, maxOpenDelay; // ms
+
+    private State state = State.CLOSED;
+    private int failures = 0; // échecs consécutifs
+    private long openDelay; // durée de la prochaine ouverture
+    private long openUntil; // fin de l'ouverture en cours
+    private boolean probing = false; // requête d'essai en cours
+    private long openings = 0, rejections = 0;
+    private volatile Listener listener;
+
+    /**
+     * Créer un disjoncteur.
+     *
+     * @param failureThreshold nombre d'échecs consécutifs provoquant
+     * l'ouverture
+     * @param minOpenDelay durée de la première ouverture (ms)
+     * @param maxOpenDelay durée maximale d'ouverture (ms)
+     */
+    public CircuitBreaker(int failureThreshold, long minOpenDelay, long maxOpenDelay) {
+        this.failureThreshold = failureThreshold;
+        this.minOpenDelay = minOpenDelay;
+        this.maxOpenDelay = maxOpenDelay;
+        this.openDelay = minOpenDelay;
+    }
+
+    /**
+     * Définir l'objet prévenu des changements d'état.
+     *
+     * @param listener (ou null)
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Demander l'autorisation d'envoyer une requête.
+     *
+     * @return false si la requête doit être refusée
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            setState(State.HALF_OPEN);
+            probing = false;
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && !probing) { // Requête d'essai
+            probing = true;
+            return true;
+        }
+        rejections++;
+        return false;
+    }
+
+    /**
+     * Le serveur a répondu.
+     */
+    public synchronized void onSuccess() {
+        failures = 0;
+        probing = false;
+        if (state != State.CLOSED) {
+            openDelay = minOpenDelay;
+            setState(State.CLOSED);
+        }
+    }
+
+    /**
+     * Le serveur n'a pas répondu (ou a signalé une erreur temporaire).
+     */
+    public synchronized void onFailure() {
+        failures++;
+        probing = false;
+        if (state == State.HALF_OPEN) { // Essai infructueux
+            open();
+            openDelay = Math.min(maxOpenDelay, 2 * openDelay);
+        } else if (state == State.CLOSED && failures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Le serveur demande de suspendre les requêtes (en-tête Retry-After):
+     * ouvrir le disjoncteur au moins jusqu'à la fin du délai indiqué, sans
+     * modifier la durée des ouvertures suivantes.
+     *
+     * @param delay durée de la suspension (ms)
+     */
+    public synchronized void suspend(long delay) {
+        probing = false;
+        long until = System.currentTimeMillis() + delay;
+        if (state == State.OPEN) {
+            openUntil = Math.max(openUntil, until);
+        } else {
+            openUntil = until;
+            openings++;
+        }
+        setState(State.OPEN); // (fin de l'ouverture éventuellement repoussée)
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + openDelay;
+        openings++;
+        setState(State.OPEN);
+    }
+
+    private void setState(State state) {
+        this.state = state;
+        Listener l = listener;
+        if (l != null) {
+            l.stateChanged(state);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Indiquer si le disjoncteur est ouvert (serveur considéré comme
+     * indisponible).
+     *
+     * @return
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() < openUntil;
+    }
+
+    /**
+     * Durée restante de l'ouverture en cours, après laquelle une requête
+     * d'essai sera autorisée.
+     *
+     * @return durée en ms (0 si le disjoncteur n'est pas ouvert)
+     */
+    public synchronized long getRemainingOpenTime() {
+        return state == State.OPEN
+                ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+    }
+
+    public synchronized long getOpenings() {
+        return openings;
+    }
+
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state + " (" + failures + " échecs, " + openings + " ouvertures, "
+                + rejections + " refus)";
+    }
+}
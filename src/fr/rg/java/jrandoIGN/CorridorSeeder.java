@@ -0,0 +1,258 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Préparation hors-ligne des tuiles couvrant un corridor autour d'une trace.
+ *
+ * <p>
+ * Pour chaque niveau de zoom et chaque couche, les tuiles situées à moins
+ * d'une distance donnée de la trace sont identifiées puis téléchargées en
+ * parallèle dans le cache disque. Le corridor est construit dans la
+ * projection WMTS (WMTS.longToWmtsX() et WMTS.latToWmtsY()): les indices de
+ * tuile s'obtiennent, comme dans WMTS.longToTileCol() et
+ * WMTS.latToTileRow(), en divisant les coordonnées par la dimension des
+ * tuiles, mais après les avoir décalées de la demi-largeur du corridor.
+ *
+ * <p>
+ * Les tuiles déjà présentes dans le cache sont ignorées: relancer une
+ * préparation interrompue la reprend donc là où elle s'était arrêtée.
+ *
+ * <p>
+ * Utilisation sans interface graphique:
+ * <pre>
+ * java fr.rg.java.jrandoIGN.CorridorSeeder fichier.kml [distance_m] [zooms]
+ * </pre>
+ * où zooms est une liste de niveaux séparés par des virgules (13,14,15,16 par
+ * défaut).
+ */
+public class CorridorSeeder {
+
+    // Valeurs par défaut
+    public static final int DEFAULT_BUFFER_M = 500;
+    public static final int[] DEFAULT_ZOOMS = {13, 14, 15, 16};
+    public static final int[] DEFAULT_LAYERS = {TileKey.LAYER_MAPS, TileKey.LAYER_ORTHO};
+
+    /**
+     * Suivi de l'avancement de la préparation.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Appelée (depuis le thread de la préparation) après chaque tuile.
+         *
+         * @param done tuiles traitées (téléchargées, déjà présentes ou en échec)
+         * @param skipped tuiles déjà présentes dans le cache
+         * @param failed tuiles en échec
+         * @param total nombre total de tuiles
+         */
+        void onProgress(int done, int skipped, int failed, int total);
+    }
+
+    private final TilePackStore store;
+    private final TileFetcher fetcher;
+    private final int parallelism;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Créer une préparation alimentant un cache disque.
+     *
+     * @param store cache disque
+     * @param fetcher moteur de téléchargement
+     * @param parallelism nombre de téléchargements simultanés
+     */
+    public CorridorSeeder(TilePackStore store, TileFetcher fetcher, int parallelism) {
+        this.store = store;
+        this.fetcher = fetcher;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Identifier les tuiles couvrant le corridor autour de la trace, dans
+     * l'ordre de la trace.
+     *
+     * @param track géolocalisations de la trace
+     * @param bufferM demi-largeur du corridor (en mètres)
+     * @param zooms niveaux de zoom
+     * @param layers couches
+     * @return clés des tuiles (sans doublon)
+     */
+    public static long[] computeTiles(List<GeoLocation> track, double bufferM,
+            int[] zooms, int[] layers) {
+        LongTileMap<Boolean> seen = new LongTileMap<>(1024);
+        long[] keys = new long[1024];
+        int n = 0;
+        for (int zoom : zooms) {
+            double tileDim = WMTS.getTileDim(zoom);
+            for (int i = 0; i < track.size(); i++) {
+                GeoLocation g = track.get(i);
+                GeoLocation next = track.get(Math.min(i + 1, track.size() - 1));
+                double x0 = WMTS.longToWmtsX(g.longitude);
+                double y0 = WMTS.latToWmtsY(g.latitude);
+                double x1 = WMTS.longToWmtsX(next.longitude);
+                double y1 = WMTS.latToWmtsY(next.latitude);
+                // Distance du corridor dans la projection (facteur d'échelle
+                // de Mercator)
+                double b = bufferM / Math.cos(Math.toRadians(g.latitude));
+                // Échantillonner le segment tous les 1/2 tuile
+                int nSteps = (int) Math.ceil(Math.hypot(x1 - x0, y1 - y0) / (tileDim / 2));
+                for (int s = 0; s <= nSteps; s++) {
+                    double t = nSteps == 0 ? 0 : (double) s / nSteps;
+                    double x = x0 + t * (x1 - x0);
+                    double y = y0 + t * (y1 - y0);
+                    int cMin = (int) ((x - b) / tileDim);
+                    int cMax = (int) ((x + b) / tileDim);
+                    int rMin = (int) ((y - b) / tileDim);
+                    int rMax = (int) ((y + b) / tileDim);
+                    for (int r = Math.max(0, rMin); r <= rMax; r++) {
+                        for (int c = Math.max(0, cMin); c <= cMax; c++) {
+                            for (int layer : layers) {
+                                long key = TileKey.of(layer, zoom, r, c);
+                                if (seen.put(key, Boolean.TRUE) == null) {
+                                    if (n == keys.length) {
+                                        keys = Arrays.copyOf(keys, 2 * n);
+                                    }
+                                    keys[n++] = key;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(keys, n);
+    }
+
+    /**
+     * Télécharger les tuiles absentes du cache.
+     *
+     * @param keys tuiles à préparer
+     * @param listener suivi de l'avancement (ou null)
+     * @return nombre de tuiles en échec
+     * @throws InterruptedException
+     */
+    public int seed(long[] keys, ProgressListener listener) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        CompletionService<Boolean> cs = new ExecutorCompletionService<>(executor);
+        ArrayList<Future<Boolean>> pending = new ArrayList<>();
+        int done = 0, skipped = 0, failed = 0;
+        try {
+            for (final long key : keys) {
+                if (store.contains(key)) { // Déjà présente (reprise)
+                    skipped++;
+                    done++;
+                    continue;
+                }
+                pending.add(cs.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if (cancelled) {
+                            return Boolean.FALSE;
+                        }
+                        fetcher.download(key, store);
+                        return Boolean.TRUE;
+                    }
+                }));
+            }
+            if (listener != null) {
+                listener.onProgress(done, skipped, failed, keys.length);
+            }
+
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    if (!cs.take().get()) { // Annulée
+                        failed++;
+                    }
+                } catch (ExecutionException ex) {
+                    failed++;
+                    Logger.getLogger(CorridorSeeder.class.getName()).log(Level.FINE,
+                            null, ex.getCause());
+                }
+                done++;
+                if (listener != null) {
+                    listener.onProgress(done, skipped, failed, keys.length);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                store.flush();
+            } catch (IOException ex) {
+                Logger.getLogger(CorridorSeeder.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Interrompre la préparation (les tuiles déjà téléchargées sont
+     * conservées).
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Préparation sans interface graphique.
+     *
+     * @param args fichier KML, distance (m), niveaux de zoom
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CorridorSeeder fichier.kml [distance_m] [zooms]");
+            System.exit(1);
+        }
+        HashMap<String, Object> b = new TrackReader().extractFromKML(args[0]);
+        @SuppressWarnings("unchecked")
+        List<GeoLocation> track = (List<GeoLocation>) b.get(TrackReader.LOCATIONS_KEY);
+        if (track == null || track.isEmpty()) {
+            System.err.println("Aucune position dans " + args[0]);
+            System.exit(1);
+        }
+        double buffer = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_BUFFER_M;
+        int[] zooms = DEFAULT_ZOOMS;
+        if (args.length > 2) {
+            String[] z = args[2].split(",");
+            zooms = new int[z.length];
+            for (int i = 0; i < z.length; i++) {
+                zooms[i] = Integer.parseInt(z[i].trim());
+            }
+        }
+
+        File dir = IGNMap.getDefaultTileCacheDir();
+        CorridorSeeder seeder = new CorridorSeeder(TilePackStore.open(dir),
+                new TileFetcher(TileFetcher.DEFAULT_MAX_REQUESTS),
+                TileFetcher.DEFAULT_MAX_REQUESTS);
+        long[] keys = computeTiles(track, buffer, zooms, DEFAULT_LAYERS);
+        System.out.println(keys.length + " tuiles dans le corridor de " + buffer + " m");
+        int failed = seeder.seed(keys, new ProgressListener() {
+            private int lastPercent = -1;
+
+            @Override
+            public void onProgress(int done, int skipped, int failed, int total) {
+                int percent = total == 0 ? 100 : done * 100 / total;
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    System.out.printf("%3d%% (%d/%d, %d déjà présentes, %d échecs)%n",
+                            percent, done, total, skipped, failed);
+                }
+            }
+        });
+        System.exit(failed == 0 ? 0 : 2);
+    }
+}
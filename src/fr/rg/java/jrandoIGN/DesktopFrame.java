@@ -14,8 +14,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.BackingStoreException;
@@ -32,6 +34,8 @@ import javax.swing.JOptionPane;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.filechooser.FileNameExtensionFilter;
@@ -62,6 +66,7 @@ public class DesktopFrame extends JFrame implements ActionListener,
   public static final String PROXY_PORT_NUMBER_KEY = "proxy_port_number";
   // Menus de l'IHM
   private JMenuItem mItmOpenKml, mItmOpenHiTrack, mItmCloseKml, mItmSaveKml;
+  private JMenuItem mItmSeedTiles, mItmExportMap;
   private JRadioButtonMenuItem mItmEditKml;
   private JMenuItem mItmAbout, mItmIGNKey;
   private JRadioButtonMenuItem mItmMapWin, mItmInfoWin;
@@ -168,6 +173,21 @@ public class DesktopFrame extends JFrame implements ActionListener,
     mItmSaveKml.setEnabled(false);
     trackMenu.add(mItmSaveKml);
 
+    // Télécharger les tuiles autour de la trace -> inactif tant qu'aucune
+    // trace n'est ouverte
+    trackMenu.addSeparator();
+    mItmSeedTiles = new JMenuItem(resB.getString("seed_tiles_menu_itm"));
+    mItmSeedTiles.addActionListener(DesktopFrame.this);
+    mItmSeedTiles.setEnabled(false);
+    trackMenu.add(mItmSeedTiles);
+
+    // Exporter la carte autour de la trace -> inactif tant qu'aucune trace
+    // n'est ouverte
+    mItmExportMap = new JMenuItem(resB.getString("export_map_menu_itm"));
+    mItmExportMap.addActionListener(DesktopFrame.this);
+    mItmExportMap.setEnabled(false);
+    trackMenu.add(mItmExportMap);
+
     return trackMenu;
   }
 
@@ -367,6 +387,8 @@ public class DesktopFrame extends JFrame implements ActionListener,
     mItmCloseKml.setEnabled(b);
     mItmEditKml.setEnabled(b);
     mItmSaveKml.setEnabled(b);
+    mItmSeedTiles.setEnabled(b);
+    mItmExportMap.setEnabled(b);
   }
 
   /**
@@ -646,6 +668,178 @@ public class DesktopFrame extends JFrame implements ActionListener,
     }
   }
 
+  /**
+   * Télécharger dans le cache disque les tuiles couvrant un corridor autour de
+   * la trace courante (pour une utilisation hors-ligne).
+   */
+  private void seedCorridorTiles() {
+    ResourceBundle resB
+      = ResourceBundle.getBundle("i18n/strings", Locale.getDefault());
+    @SuppressWarnings("unchecked")
+    final List<GeoLocation> list
+      = (List<GeoLocation>) trackBundle.get(TrackReader.LOCATIONS_KEY);
+    if (list == null || list.isEmpty()) {
+      return;
+    }
+    // Cache disque de l'application (absent si désactivé ou source locale)
+    TilePackStore store = TileService.getInstance().getStore();
+    if (store == null) {
+      JOptionPane.showMessageDialog(DesktopFrame.this,
+        resB.getString("seed_no_cache_msg"),
+        resB.getString("seed_tiles_menu_itm"), JOptionPane.WARNING_MESSAGE);
+      return;
+    }
+
+    // Demi-largeur du corridor
+    String s = JOptionPane.showInputDialog(DesktopFrame.this,
+      resB.getString("seed_buffer") + " :", CorridorSeeder.DEFAULT_BUFFER_M);
+    if (s == null) {
+      return;
+    }
+    final double buffer;
+    try {
+      buffer = Double.parseDouble(s.trim());
+    } catch (NumberFormatException ex) {
+      return;
+    }
+
+    final CorridorSeeder seeder = new CorridorSeeder(store,
+      TileService.getInstance().getFetcher(), TileFetcher.DEFAULT_MAX_REQUESTS);
+    final String errors = resB.getString("seed_errors");
+    final ProgressMonitor monitor = new ProgressMonitor(DesktopFrame.this,
+      resB.getString("seed_tiles_menu_itm"), resB.getString("seed_computing"),
+      0, 100);
+    monitor.setMillisToDecideToPopup(0);
+    monitor.setMillisToPopup(0);
+
+    // Préparation en tâche de fond
+    new SwingWorker<Integer, int[]>() {
+      @Override
+      protected Integer doInBackground() throws Exception {
+        long[] keys = CorridorSeeder.computeTiles(list, buffer,
+          CorridorSeeder.DEFAULT_ZOOMS, CorridorSeeder.DEFAULT_LAYERS);
+        return seeder.seed(keys, new CorridorSeeder.ProgressListener() {
+          @Override
+          public void onProgress(int done, int skipped, int failed, int total) {
+            publish(new int[]{done, skipped, failed, total});
+          }
+        });
+      }
+
+      @Override
+      protected void process(List<int[]> chunks) {
+        if (monitor.isCanceled()) {
+          seeder.cancel();
+          return;
+        }
+        int[] p = chunks.get(chunks.size() - 1);
+        monitor.setMaximum(p[3]);
+        monitor.setProgress(p[0]);
+        monitor.setNote(p[0] + "/" + p[3] + " (" + p[2] + " " + errors + ")");
+      }
+
+      @Override
+      protected void done() {
+        monitor.close();
+        try {
+          get();
+        } catch (InterruptedException | ExecutionException ex) {
+          Logger.getLogger(DesktopFrame.class.getName()).log(Level.SEVERE, null, ex);
+        }
+      }
+    }.execute();
+  }
+
+  /**
+   * Exporter la carte autour de la trace courante dans une image PNG, au
+   * niveau de zoom et avec la couche de la carte affichée.
+   */
+  private void exportMap() {
+    ResourceBundle resB
+      = ResourceBundle.getBundle("i18n/strings", Locale.getDefault());
+    // Trace telle qu'affichée (points déplacés en mode édition compris)
+    IGNMap map = getIGNFrame(trackBundle, true).getMap();
+    final List<GeoLocation> list = map.getDisplayedTrack();
+    if (list.isEmpty()) {
+      return;
+    }
+    final int zoom = map.getIgnScale();
+    final int layer = map.getLayer();
+
+    // Fichier image
+    Preferences prefs = Preferences.userNodeForPackage(this.getClass());
+    JFileChooser chooser = new JFileChooser(prefs.get(LAST_USED_DIR_KEY, null));
+    chooser.setApproveButtonText(resB.getString("save_button_text"));
+    chooser.setFileFilter(new FileNameExtensionFilter("Image PNG", "png", "PNG"));
+    if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+      return;
+    }
+    File f = chooser.getSelectedFile();
+    if (!f.getName().toLowerCase().endsWith(".png")) {
+      f = new File(f.getParentFile(), f.getName() + ".png");
+    }
+    final File png = f;
+
+    final MapExporter exporter = new MapExporter(
+      TileService.getInstance().getStore(),
+      TileService.getInstance().getFetcher(), TileFetcher.DEFAULT_MAX_REQUESTS);
+    final ProgressMonitor monitor = new ProgressMonitor(DesktopFrame.this,
+      resB.getString("export_map_menu_itm"), png.getName(), 0, 100);
+    monitor.setMillisToDecideToPopup(0);
+    monitor.setMillisToPopup(0);
+
+    // Export en tâche de fond
+    new SwingWorker<Boolean, int[]>() {
+      @Override
+      protected Boolean doInBackground() throws Exception {
+        return exporter.export(layer, zoom,
+          MapExporter.getBounds(list, MapExporter.DEFAULT_MARGIN_M), list, png,
+          new MapExporter.ProgressListener() {
+          @Override
+          public void onProgress(int done, int total) {
+            publish(new int[]{done, total});
+          }
+        });
+      }
+
+      @Override
+      protected void process(List<int[]> chunks) {
+        if (monitor.isCanceled()) {
+          exporter.cancel();
+          return;
+        }
+        int[] p = chunks.get(chunks.size() - 1);
+        monitor.setMaximum(p[1]);
+        monitor.setProgress(p[0]);
+      }
+
+      @Override
+      protected void done() {
+        monitor.close();
+        try {
+          get();
+        } catch (InterruptedException | ExecutionException ex) {
+          Logger.getLogger(DesktopFrame.class.getName()).log(Level.SEVERE, null, ex);
+        }
+      }
+    }.execute();
+  }
+
+  /**
+   * Signaler l'échec de l'ouverture de la source de tuiles choisie dans les
+   * préférences (le service de l'IGN est utilisé à la place).
+   */
+  private void checkTileSource() {
+    IOException error = TileService.getInstance().getFetcher().getSourceError();
+    if (error == null) {
+      return;
+    }
+    ResourceBundle resB = ResourceBundle.getBundle("i18n/strings", Locale.getDefault());
+    JOptionPane.showMessageDialog(DesktopFrame.this,
+      resB.getString("tile_source_error_msg") + "\n" + error.getMessage(),
+      resB.getString("app_name"), JOptionPane.WARNING_MESSAGE);
+  }
+
   private void aboutMessage() {
     ResourceBundle resB = ResourceBundle.getBundle("i18n/strings", Locale.getDefault());
     JOptionPane.showMessageDialog(DesktopFrame.this,
@@ -703,6 +897,10 @@ public class DesktopFrame extends JFrame implements ActionListener,
       getIGNFrame(trackBundle, true).getMap().setEditionMode(mItmEditKml.isSelected());
     } else if (mItmSaveKml.equals(src)) {
       saveKmlFile();
+    } else if (mItmSeedTiles.equals(src)) { // Préparation hors-ligne
+      seedCorridorTiles();
+    } else if (mItmExportMap.equals(src)) { // Export grand format
+      exportMap();
     } else if (mItmMapWin.equals(src)) { // Sélectionner la fen. carte
       try {
         getIGNFrame(trackBundle, true).setSelected(true);
@@ -768,6 +966,7 @@ public class DesktopFrame extends JFrame implements ActionListener,
 
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setVisible(true);
+        frame.checkTileSource();
       }
     });
   }
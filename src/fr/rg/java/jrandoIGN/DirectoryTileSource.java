@@ -0,0 +1,87 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Tuiles rangées dans une arborescence locale:
+ * <pre>
+ * racine/couche/zoom/colonne/ligne.jpg (ou .png)
+ * </pre>
+ * où couche vaut "maps" ou "ortho" (voir TileKey.LAYER_MAPS et
+ * TileKey.LAYER_ORTHO) et où les lignes sont numérotées du nord vers le sud,
+ * comme dans la grille WMTS de l'IGN.
+ */
+public class DirectoryTileSource implements TileSource {
+
+    // Nom des répertoires des couches (indice: couche de TileKey)
+    private static final String[] LAYER_DIRS = {"maps", "ortho"};
+    private static final String[] EXTENSIONS = {".jpg", ".png", ".jpeg"};
+
+    private final File root;
+
+    /**
+     * Ouvrir une arborescence de tuiles.
+     *
+     * @param root répertoire racine
+     * @throws IOException si le répertoire n'existe pas
+     */
+    public DirectoryTileSource(File root) throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException("Répertoire de tuiles introuvable: " + root);
+        }
+        this.root = root;
+    }
+
+    @Override
+    public String getName() {
+        return root.getPath();
+    }
+
+    @Override
+    public boolean hasLayers() {
+        return true;
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * Chemin de la tuile (sans extension).
+     *
+     * @param key clé de la tuile
+     * @return
+     */
+    public File getTileFile(long key) {
+        int layer = TileKey.layer(key);
+        String layerDir = layer >= 0 && layer < LAYER_DIRS.length
+                ? LAYER_DIRS[layer] : Integer.toString(layer);
+        return new File(root, layerDir + File.separator + TileKey.zoom(key)
+                + File.separator + TileKey.col(key) + File.separator + TileKey.row(key));
+    }
+
+    @Override
+    public ByteBuffer getTile(long key) throws IOException {
+        String base = getTileFile(key).getPath();
+        for (String ext : EXTENSIONS) {
+            File f = new File(base + ext);
+            if (f.isFile()) {
+                return ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
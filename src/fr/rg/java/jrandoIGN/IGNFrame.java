@@ -36,6 +36,8 @@ public class IGNFrame extends JInternalFrame implements ActionListener {
   // Clés pour la gestion des menus
   private final static String ACTION_ADDRESS = "ACTION_ADDRESS",
     ACTION_ORTHO_MAP = "ACTION_ORTHOMAP",
+    ACTION_BLEND_MAP = "ACTION_BLENDMAP",
+    ACTION_BLEND_OPACITY = "ACTION_BLEND_OPACITY",
     ACTION_PRINT = "ACTION_PRINT",
     ACTION_ONE_KM = "ACTION_ONE_KM";
   private IGNMap map = null; // Image de la carte
@@ -90,6 +92,16 @@ public class IGNFrame extends JInternalFrame implements ActionListener {
       ActionEvent.ALT_MASK));
     mItmAirMap.setActionCommand(ACTION_ORTHO_MAP);
     menuAffichage.add(mItmAirMap);
+    JCheckBoxMenuItem mItmBlendMap
+      = new JCheckBoxMenuItem(resB.getString("blend_menu_itm"));
+    mItmBlendMap.addActionListener(IGNFrame.this);
+    mItmBlendMap.setActionCommand(ACTION_BLEND_MAP);
+    menuAffichage.add(mItmBlendMap);
+    JMenuItem mItmBlendOpacity
+      = new JMenuItem(resB.getString("blend_opacity_menu_itm"));
+    mItmBlendOpacity.addActionListener(IGNFrame.this);
+    mItmBlendOpacity.setActionCommand(ACTION_BLEND_OPACITY);
+    menuAffichage.add(mItmBlendOpacity);
     JCheckBoxMenuItem mItmOneKm
       = new JCheckBoxMenuItem(resB.getString("oneKm_menu_itm"));
     mItmOneKm.addActionListener(IGNFrame.this);
@@ -198,6 +210,38 @@ public class IGNFrame extends JInternalFrame implements ActionListener {
       case ACTION_ORTHO_MAP:
         map.setOrthoMode(((JCheckBoxMenuItem) e.getSource()).isSelected());
         break;
+      case ACTION_BLEND_MAP:
+        JCheckBoxMenuItem mItmBlend = (JCheckBoxMenuItem) e.getSource();
+        TileSource source = TileService.getInstance().getFetcher().getSource();
+        if (mItmBlend.isSelected() && !source.hasLayers()) {
+          // Une seule couche: la tuile serait superposée à elle-même
+          ResourceBundle res
+            = ResourceBundle.getBundle("i18n/strings", Locale.getDefault());
+          JOptionPane.showMessageDialog(this,
+            res.getString("blend_unavailable_msg") + "\n" + source.getName(),
+            res.getString("blend_menu_itm"), JOptionPane.WARNING_MESSAGE);
+          mItmBlend.setSelected(false);
+          break;
+        }
+        map.setBlendMode(mItmBlend.isSelected());
+        break;
+      case ACTION_BLEND_OPACITY:
+        ResourceBundle resB
+          = ResourceBundle.getBundle("i18n/strings", Locale.getDefault());
+        TileService service = TileService.getInstance();
+        String percent = (String) JOptionPane.showInputDialog(this,
+          resB.getString("blend_opacity_msg"),
+          resB.getString("blend_opacity_menu_itm"),
+          JOptionPane.QUESTION_MESSAGE, null, null, service.getBlendOpacity());
+        if (percent != null) {
+          try {
+            service.setBlendOpacity(Integer.parseInt(percent.trim()));
+            map.repaint();
+          } catch (NumberFormatException ex) {
+            // Valeur ignorée
+          }
+        }
+        break;
       case ACTION_ONE_KM:
         map.setOneKmMode(((JCheckBoxMenuItem) e.getSource()).isSelected());
         break;
@@ -3,15 +3,20 @@
 package fr.rg.java.jrandoIGN;
 
 import java.awt.AWTEvent;
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentEvent;
@@ -29,17 +34,13 @@ import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 import java.io.File;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.prefs.Preferences;
-import javax.imageio.ImageIO;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.ImageIcon;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
@@ -87,6 +88,7 @@ public class IGNMap extends JComponent implements Printable,
     // Clé de développement IGN valable jusqu'au ?
     public static final String CLE_IGN_DEFAULT = "ry9bshqmzmv1gao9srw610oq";
     public static final String KEY_CLE_IGN = "key_cle_IGN";
+    public static final String KEY_USE_LOCAL_TILE_CACHE = "use_local_tile_cache";
 
     private static final int TILE_PIXEL_DIM = 256; // Dimension d'une tuile
     private static final int DEFAULT_MAP_WIDTH = 3 * TILE_PIXEL_DIM;
@@ -103,6 +105,15 @@ public class IGNMap extends JComponent implements Printable,
     private static final Color TRANSPARENT_RED = new Color(1.0f, 0.1f, 0.2f, 0.5f);
     private static final Color TRANSPARENT_GREEN = new Color(0f, 1.0f, 0f, 0.5f);
     private static final float PT_WIDTH = 7.5f;
+    // Écart maximal entre la trace dessinée et la trace entière (en pixels
+    // de la carte, soit 1 pixel à l'écran au facteur de zoom maximal)
+    private static final double TRACK_TOLERANCE_PX = 0.5;
+    // Rangées de tuiles ajoutées sur chaque bord de la fenêtre de tuiles
+    private static final int EXTRA_TILE = 1;
+    // État des tuiles dans l'image de la carte
+    private static final byte TILE_EMPTY = 0, TILE_FALLBACK = 1, TILE_FINAL = 2;
+    // Côté des cellules de l'index des points de la trace (m)
+    private static final double POINT_CELL_M = 100;
 
     // Échelle de distance
     private final static Font FONT = new Font(Font.SANS_SERIF, Font.BOLD, 12);
@@ -114,17 +125,27 @@ public class IGNMap extends JComponent implements Printable,
     // +---------+
     private boolean dispOneKm;
     private boolean dispOrthoImg; // type de tuiles (aérienne ou non)
+    private boolean dispBlend; // carte superposée à la vue aérienne
     private int ignScale = 15; // Niveau de zoom IGN
     // Indices des tuiles extrêmes de la carte actuelle (visibles ou non)
     private int tileRowMin, tileRowMax, tileColMin, tileColMax;
-    // SwingWorker pour récupérer les tuiles 
-    private TileLoader loader = null;
-    // Cache mémoire pour les tuiles de la carte
-    private final HashMap<String, ImageIcon> tuiles;
-    // Utilisation d'un cache disque pour les tuiles téléchargées et plus 
-    // nécessairement affichées (non autorisé par l'IGN)
-    private final boolean useLocalTileCache = true;
-    private final File localTileCacheDir; // répertoire de stockage
+    // Service de tuiles partagé par toutes les cartes et abonnement aux
+    // tuiles de la fenêtre courante
+    private final TileService tileService;
+    private final TileService.Subscription subscription;
+    // Cache mémoire (LRU borné en octets) partagé
+    private final TileMemoryCache tuiles;
+    private TilePrefetcher prefetcher; // préchargement dans le cache disque
+    // Image des tuiles de la fenêtre courante (couche, niveau et indices des
+    // tuiles extrêmes) et état de chacune de ses tuiles
+    private BufferedImage baseLayer;
+    private int[] baseWindow;
+    private byte[] tileStates;
+    // Image de la trace (mêmes dimensions), à redessiner si elle n'est plus
+    // valide
+    private BufferedImage trackLayer;
+    private int[] trackWindow;
+    private boolean trackLayerValid = false;
 
     // Géolocalisation au centre de l'écran (à maintenir à jour
     // après chaque translation de carte)
@@ -143,15 +164,29 @@ public class IGNMap extends JComponent implements Printable,
 
     // Trace issue du fichier KML
     private ArrayList<GeoLocation> kmlList; // données
-    private final Path2D kmlPath = new Path2D.Double(); // courbe entière
+    // Sommets de la courbe (trace simplifiée, en pixels de la carte)
+    private float[] pathX = new float[0], pathY = new float[0];
+    private int pathLength = 0;
+    // Index spatiaux des segments de la courbe (pixels de la carte) et des
+    // points de la trace (coordonnées WMTS, mis à jour à chaque modification)
+    private TrackGrid segmentGrid;
+    private PointIndex pointIndex;
+    private final Path2D visiblePath = new Path2D.Float(); // portion visible
     private final Path2D kmlSubpath = new Path2D.Double(); // portion de courbe
     private Rectangle2D trackPoints[] = null; // Points de la courbe
     private Point2D kmlStart, kmlEnd; // début et fin de courbe
     private final ImageIcon imgDepKml, imgArrKml, intermKml; // Images
+    // Simplification de la trace selon le niveau de zoom (null: trace
+    // entière, le temps de calculer la pyramide en arrière-plan)
+    private TrackSimplifier trackSimplifier;
+    private SwingWorker<TrackSimplifier, Void> simplifierWorker;
+    private int trackVersion = 0; // incrémenté à chaque modification
 
     // Mode édition de trace
     private boolean trackEditingMode = false; // Mode édition de la trace
     private int selectedPointIdx = -1; // Point sélectionné (-1 sinon)
+    private int selectedVertex = -1; // Sommet de la courbe correspondant
+    private boolean pointDragged = false; // Point en cours de déplacement
     private final JPopupMenu popup; // menu contextuel
     private boolean contextMenuActivated = false; // menu contextuel activé
     private JMenuItem itmDelPoint, itmAddPtAfter, itmAddPtBefore, itmCancel;
@@ -162,6 +197,20 @@ public class IGNMap extends JComponent implements Printable,
     // Écouteurs de modification de trace
     private final List<WeakReference<TrackModificationListener>> mListeners;
 
+    /**
+     * Répertoire du cache disque des tuiles (créé si nécessaire).
+     *
+     * @return ~/.jrandoIGN/cache
+     */
+    public static File getDefaultTileCacheDir() {
+        File dir = new File(System.getProperty("user.home") + File.separator
+                + ".jrandoIGN" + File.separator + "cache" + File.separator);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
     /**
      * Construire le composant avec une carte centrée autour d'une
      * géolocalisation donnée.
@@ -176,17 +225,29 @@ public class IGNMap extends JComponent implements Printable,
         // Mémoriser la position centrale
         centerGeoLoc = new GeoLocation(gL.longitude, gL.latitude);
 
-        // Répertoire cache pour les cartes (le créer si nécessaire)
-        localTileCacheDir = new File(System.getProperty("user.home") + File.separator
-                + ".jrandoIGN" + File.separator + "cache" + File.separator);
-        if (!localTileCacheDir.exists()) {
-            localTileCacheDir.mkdirs();
-        }
-
-        // Cache mémoire: les tuiles seront chargées
+        // Service de tuiles partagé: les tuiles seront chargées
         // à la mise en place du composant avec la gestion
         // de l'évênement AWTEvent.COMPONENT_RESIZED
-        tuiles = new HashMap<>();
+        tileService = TileService.getInstance();
+        tuiles = tileService.getMemoryCache();
+        subscription = tileService.subscribe(new TileService.TileListener() {
+            @Override
+            public void tileReady(long key) {
+                invalidateBaseTile(key);
+                repaint();
+                updateProgress();
+            }
+
+            @Override
+            public void fallbackChanged(long key) {
+                if (invalidateBaseTile(key)) {
+                    repaint();
+                }
+            }
+        });
+        if (tileService.getStore() != null) {
+            prefetcher = new TilePrefetcher(tileService);
+        }
 
         // +--------------+
         // | Barre d'état |
@@ -262,8 +323,10 @@ public class IGNMap extends JComponent implements Printable,
         gNew.speed = (gBefore.speed + gAfter.speed) / 2;
         // Insertion de la nouvelle Geolocalisation    
         kmlList.add(gAfterIdx, gNew);
+        pointIndex.insert(gAfterIdx, trackX(gNew), trackY(gNew));
         // Mettre à jour l'affichage
         selectedPointIdx = -1;
+        trackModified();
         generateTrackComponents();
         repaint();
         // avertir les écouteurs que la trace a été modifiée
@@ -289,7 +352,9 @@ public class IGNMap extends JComponent implements Printable,
             public void actionPerformed(ActionEvent e) {
                 if (selectedPointIdx != -1) {
                     kmlList.remove(selectedPointIdx);
+                    pointIndex.remove(selectedPointIdx);
                     selectedPointIdx = -1;
+                    trackModified();
                     generateTrackComponents();
                     repaint();
                     // avertir les écouteurs que la trace a été modifiée
@@ -360,7 +425,14 @@ public class IGNMap extends JComponent implements Printable,
             return;
         }
 
+        // Indexer les points de la trace
+        pointIndex = new PointIndex(POINT_CELL_M);
+        for (GeoLocation g : kmlList) {
+            pointIndex.add(trackX(g), trackY(g));
+        }
+
         // Centrer la carte sur la première position
+        trackModified();
         setMapCenter(kmlList.get(0));
 
         // Créer les éléments graphiques correspondant à la trace
@@ -377,6 +449,11 @@ public class IGNMap extends JComponent implements Printable,
      * nouvelle trace réutilise le chemin et la liste des points de la
      * précédente (après réinitialisation).
      *
+     * <p>
+     * Le chemin ne passe que par les points de la trace simplifiée au niveau
+     * de zoom courant (TrackSimplifier), dès que celle-ci est calculée; les
+     * points d'édition restent ceux de la trace entière.
+     *
      * @see Path2D
      * @see Rectangle2D
      */
@@ -386,7 +463,7 @@ public class IGNMap extends JComponent implements Printable,
         }
 
         // Réinitialisations
-        kmlPath.reset();
+        pathLength = 0;
         if (trackPoints == null || trackPoints.length < kmlList.size()) {
             trackPoints = new Rectangle2D[kmlList.size()];
         }
@@ -397,35 +474,228 @@ public class IGNMap extends JComponent implements Printable,
             kmlEnd = new Point2D.Float();
         }
 
-        GeoLocation g;
-        double tileDim = WMTS.getTileDim(ignScale);
+        // Points de la trace simplifiée au niveau de zoom courant
+        int[] indices = trackSimplifier == null
+                || trackSimplifier.getPointCount() != kmlList.size()
+                ? null : trackSimplifier.getIndices(ignScale);
+        int next = 0; // prochain indice de la trace simplifiée
+        selectedVertex = -1;
+        int nPath = indices == null ? kmlList.size() : indices.length;
+        if (pathX.length < nPath) {
+            pathX = new float[nPath];
+            pathY = new float[nPath];
+        }
+
+        // Transformation affine des coordonnées WMTS (projetées une fois
+        // pour toutes dans l'index des points) vers les pixels de la carte
+        double k = TILE_PIXEL_DIM / WMTS.getTileDim(ignScale);
         double mapOrigWmtsX = tileColMin * TILE_PIXEL_DIM;
         double mapOrigWmtsY = tileRowMin * TILE_PIXEL_DIM;
         float x = 0, y = 0;
-        double latitude, longitude;
+        boolean drawn;
         for (int i = 0; i < kmlList.size(); i++) { // Parcours de la liste
-            g = kmlList.get(i);
-            if (g.isModified) {
-                latitude = g.modifiedLatitude;
-                longitude = g.modifiedLongitude;
-            } else {
-                latitude = g.latitude;
-                longitude = g.longitude;
+            x = (float) (pointIndex.getX(i) * k - mapOrigWmtsX);
+            y = (float) (pointIndex.getY(i) * k - mapOrigWmtsY);
+            drawn = indices == null || (next < indices.length && indices[next] == i);
+            if (drawn && indices != null) {
+                next++;
             }
-            x = (float) (WMTS.longToWmtsX(longitude)
-                    / tileDim * TILE_PIXEL_DIM - mapOrigWmtsX);
-            y = (float) (WMTS.latToWmtsY(latitude)
-                    / tileDim * TILE_PIXEL_DIM - mapOrigWmtsY);
             if (i == 0) { // Premier point
-                kmlPath.moveTo(x, y);
                 kmlStart.setLocation(x, y);
-            } else { // points suivants
-                kmlPath.lineTo(x, y);
+            }
+            if (i == selectedPointIdx && trackEditingMode) {
+                // Le point sélectionné est toujours un sommet de la courbe
+                if (!drawn) {
+                    if (pathX.length == nPath) {
+                        pathX = Arrays.copyOf(pathX, nPath + 1);
+                        pathY = Arrays.copyOf(pathY, nPath + 1);
+                    }
+                    drawn = true;
+                }
+                selectedVertex = pathLength;
+            }
+            if (drawn) {
+                pathX[pathLength] = x;
+                pathY[pathLength++] = y;
             }
             trackPoints[i] = new Rectangle2D.Float(x - PT_WIDTH / 2,
                     y - PT_WIDTH / 2, PT_WIDTH, PT_WIDTH);
         } // Fin de parcours de la liste
         kmlEnd.setLocation(x, y);
+
+        // Indexer les segments pour le dessin
+        segmentGrid = TrackGrid.ofSegments(pathX, pathY, pathLength);
+        trackLayerValid = false;
+    }
+
+    /**
+     * Segments de la courbe à dessiner dans un rectangle de la carte: ceux de
+     * l'index et, pendant le déplacement d'un point, les deux segments
+     * voisins dont l'index ne connaît que la position initiale.
+     *
+     * @return indices croissants des segments (avec d'éventuels doublons)
+     */
+    private int[] visibleSegments(double xMin, double yMin, double xMax, double yMax) {
+        int[] segments = segmentGrid.query(xMin, yMin, xMax, yMax);
+        if (!pointDragged || selectedVertex == -1) {
+            return segments;
+        }
+        int n = segments.length;
+        segments = Arrays.copyOf(segments, n + 2);
+        for (int k = selectedVertex - 1; k <= selectedVertex; k++) {
+            if (k >= 0 && k < pathLength - 1) {
+                segments[n++] = k;
+            }
+        }
+        segments = Arrays.copyOf(segments, n);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Suivre le déplacement du point sélectionné sans régénérer la trace:
+     * seuls ce point et les deux segments voisins sont mis à jour, et seule
+     * la zone qu'ils couvraient ou couvrent désormais est redessinée.
+     */
+    private void moveSelectedPoint() {
+        if (selectedVertex == -1) {
+            return;
+        }
+        Rectangle2D dirty = vertexBounds(selectedVertex);
+        float x = (float) wmtsToMapX(pointIndex.getX(selectedPointIdx));
+        float y = (float) wmtsToMapY(pointIndex.getY(selectedPointIdx));
+        pathX[selectedVertex] = x;
+        pathY[selectedVertex] = y;
+        trackPoints[selectedPointIdx].setRect(x - PT_WIDTH / 2, y - PT_WIDTH / 2,
+                PT_WIDTH, PT_WIDTH);
+        if (selectedPointIdx == 0 || selectedPointIdx == kmlList.size() - 1) {
+            // Déplacer le marqueur de début ou de fin
+            (selectedPointIdx == 0 ? kmlStart : kmlEnd).setLocation(x, y);
+            repaint();
+            return;
+        }
+        dirty.add(vertexBounds(selectedVertex));
+
+        // Zone à redessiner (coordonnées du composant)
+        double margin = STROKE_WIDTH + PT_WIDTH;
+        double x0 = (dirty.getMinX() - margin + mapTranslation.x - mouseWheelPos.x)
+                * scale + mouseWheelPos.x;
+        double y0 = (dirty.getMinY() - margin + mapTranslation.y - mouseWheelPos.y)
+                * scale + mouseWheelPos.y;
+        double x1 = (dirty.getMaxX() + margin + mapTranslation.x - mouseWheelPos.x)
+                * scale + mouseWheelPos.x;
+        double y1 = (dirty.getMaxY() + margin + mapTranslation.y - mouseWheelPos.y)
+                * scale + mouseWheelPos.y;
+        repaint((int) Math.floor(x0), (int) Math.floor(y0),
+                (int) Math.ceil(x1 - x0) + 1, (int) Math.ceil(y1 - y0) + 1);
+    }
+
+    /**
+     * Rectangle englobant un sommet de la courbe et ses deux voisins.
+     */
+    private Rectangle2D vertexBounds(int v) {
+        Rectangle2D r = new Rectangle2D.Float(pathX[v], pathY[v], 0, 0);
+        if (v > 0) {
+            r.add(pathX[v - 1], pathY[v - 1]);
+        }
+        if (v < pathLength - 1) {
+            r.add(pathX[v + 1], pathY[v + 1]);
+        }
+        return r;
+    }
+
+    /**
+     * La trace a été remplacée ou modifiée: la dessiner entière le temps de
+     * recalculer sa pyramide de simplification en arrière-plan.
+     */
+    private void trackModified() {
+        trackSimplifier = null;
+        trackVersion++;
+        if (kmlList == null
+                || (simplifierWorker != null && !simplifierWorker.isDone())) {
+            return; // (relancé à la fin du calcul en cours)
+        }
+        computeTrackSimplifier();
+    }
+
+    /**
+     * Calculer la pyramide de simplification de la trace en arrière-plan
+     * (les coordonnées WMTS de l'index des points sont copiées depuis l'Event
+     * Dispatch Thread).
+     */
+    private void computeTrackSimplifier() {
+        final int version = trackVersion;
+        final double[] x = pointIndex.copyX();
+        final double[] y = pointIndex.copyY();
+        simplifierWorker = new SwingWorker<TrackSimplifier, Void>() {
+            @Override
+            protected TrackSimplifier doInBackground() {
+                return new TrackSimplifier(x, y, TRACK_TOLERANCE_PX);
+            }
+
+            @Override
+            protected void done() {
+                if (simplifierWorker != this) { // Calcul remplacé
+                    return;
+                }
+                if (version != trackVersion) { // Trace modifiée entre temps
+                    if (kmlList != null) {
+                        computeTrackSimplifier();
+                    }
+                    return;
+                }
+                try {
+                    trackSimplifier = get();
+                    generateTrackComponents();
+                    repaint();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Logger.getLogger(IGNMap.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        };
+        simplifierWorker.execute();
+    }
+
+    /**
+     * Abscisse WMTS (m) d'un point de la trace, éventuellement déplacé.
+     */
+    private static double trackX(GeoLocation g) {
+        return WMTS.longToWmtsX(g.isModified ? g.modifiedLongitude : g.longitude);
+    }
+
+    /**
+     * Ordonnée WMTS (m) d'un point de la trace, éventuellement déplacé.
+     */
+    private static double trackY(GeoLocation g) {
+        return WMTS.latToWmtsY(g.isModified ? g.modifiedLatitude : g.latitude);
+    }
+
+    /**
+     * Convertir une abscisse de la carte (pixels) en abscisse WMTS (m).
+     */
+    private double mapToWmtsX(double x) {
+        return (x + tileColMin * TILE_PIXEL_DIM) * WMTS.getTileDim(ignScale) / TILE_PIXEL_DIM;
+    }
+
+    /**
+     * Convertir une ordonnée de la carte (pixels) en ordonnée WMTS (m).
+     */
+    private double mapToWmtsY(double y) {
+        return (y + tileRowMin * TILE_PIXEL_DIM) * WMTS.getTileDim(ignScale) / TILE_PIXEL_DIM;
+    }
+
+    /**
+     * Convertir une abscisse WMTS (m) en abscisse de la carte (pixels).
+     */
+    private double wmtsToMapX(double x) {
+        return x * TILE_PIXEL_DIM / WMTS.getTileDim(ignScale) - tileColMin * TILE_PIXEL_DIM;
+    }
+
+    /**
+     * Convertir une ordonnée WMTS (m) en ordonnée de la carte (pixels).
+     */
+    private double wmtsToMapY(double y) {
+        return y * TILE_PIXEL_DIM / WMTS.getTileDim(ignScale) - tileRowMin * TILE_PIXEL_DIM;
     }
 
     /**
@@ -435,9 +705,28 @@ public class IGNMap extends JComponent implements Printable,
      */
     public void setEditionMode(boolean b) {
         trackEditingMode = b;
+        trackLayerValid = false;
         repaint();
     }
 
+    /**
+     * Niveau de zoom IGN affiché.
+     *
+     * @return
+     */
+    public int getIgnScale() {
+        return ignScale;
+    }
+
+    /**
+     * Indiquer si la vue aérienne est affichée.
+     *
+     * @return
+     */
+    public boolean isOrthoMode() {
+        return dispOrthoImg;
+    }
+
     /**
      * Définir le type de vue (aérienne ou carte IGN).
      *
@@ -451,6 +740,50 @@ public class IGNMap extends JComponent implements Printable,
         }
     }
 
+    /**
+     * Superposer ou non la carte IGN semi-transparente à la vue aérienne
+     * (prioritaire sur le type de vue).
+     *
+     * @param blend Carte sur vue aérienne si vrai
+     */
+    public void setBlendMode(boolean blend) {
+        if (this.dispBlend != blend) { // Changement de mode.
+            this.dispBlend = blend;
+            tileRowMin = 0; // Pour forcer le changement des tuiles
+            identifyAndLoadMapTiles();
+        }
+    }
+
+    /**
+     * Couche des tuiles affichées.
+     *
+     * @return TileKey.LAYER_BLEND, TileKey.LAYER_ORTHO ou TileKey.LAYER_MAPS
+     */
+    public int getLayer() {
+        if (dispBlend) {
+            return TileKey.LAYER_BLEND;
+        }
+        return dispOrthoImg ? TileKey.LAYER_ORTHO : TileKey.LAYER_MAPS;
+    }
+
+    /**
+     * Positions des points de la trace telles qu'elles sont affichées, y
+     * compris les points déplacés en mode édition.
+     *
+     * @return copie des positions (liste vide s'il n'y a pas de trace)
+     */
+    public ArrayList<GeoLocation> getDisplayedTrack() {
+        ArrayList<GeoLocation> track = new ArrayList<>();
+        if (kmlList != null) {
+            for (GeoLocation g : kmlList) {
+                track.add(g.isModified
+                        ? new GeoLocation(g.modifiedLongitude, g.modifiedLatitude)
+                        : new GeoLocation(g.longitude, g.latitude));
+            }
+        }
+        return track;
+    }
+
     /**
      * Afficher ou non la zone des 1 km
      *
@@ -520,20 +853,9 @@ public class IGNMap extends JComponent implements Printable,
             dim = getPreferredSize();
         }
 
-        // Quantité de tuiles à récupérer pour couvrir 2 fois l'écran : rajouter
-        // EXTRA_TILE rangées de tuiles sur chaque bord et rajouter une tuile
-        // lorsque le nombre est impair
-        int EXTRA_TILE = 1;
-        int nTileX
-                = (dim.width + dim.width + TILE_PIXEL_DIM - 1) / TILE_PIXEL_DIM + 2 * EXTRA_TILE;
-        if (nTileX % 2 == 0) {
-            nTileX++;
-        }
-        int nTileY
-                = (dim.height + dim.height + TILE_PIXEL_DIM - 1) / TILE_PIXEL_DIM + 2 * EXTRA_TILE;
-        if (nTileY % 2 == 0) {
-            nTileY++;
-        }
+        // Quantité de tuiles à récupérer pour couvrir 2 fois l'écran
+        int nTileX = windowTiles(dim.width);
+        int nTileY = windowTiles(dim.height);
 
         // Indices des nouvelles tuiles limites: la tuile contenant la 
         // géolocalisation centrale se trouve au centre
@@ -555,20 +877,50 @@ public class IGNMap extends JComponent implements Printable,
         // et décaler la trace KML
         if (tileRowMin != oldTileRowMin || tileRowMax != oldTileRowMax
                 || tileColMin != oldTileColMin || tileColMax != oldTileColMax) {
-            if (loader != null) { // Annuler un éventuel téléchargement en cours
-                loader.cancel(true);
-                progress.setValue(0);
-            }
-            loader = new TileLoader(tileRowMin, tileRowMax, tileColMin, tileColMax,
-                    dispOrthoImg, ignScale);
-            loader.execute(); // Charger les tuiles
+            // Faire glisser la fenêtre: seules les tuiles nouvellement
+            // exposées sont demandées
+            requestTiles();
 
             // (Ré-)générer la trace KML
             generateTrackComponents();
+        } else { // Reclasser les tuiles attendues (redimensionnement)
+            updateFocus();
         }
         repaint(); // redessiner la carte
     }
 
+    /**
+     * Nombre de tuiles de la fenêtre dans une dimension: de quoi couvrir 2
+     * fois l'écran, plus EXTRA_TILE rangées de tuiles sur chaque bord et une
+     * tuile de plus lorsque le nombre est pair (la tuile centrale contient la
+     * géolocalisation du centre).
+     *
+     * @param pixels largeur ou hauteur de la carte
+     * @return
+     */
+    private static int windowTiles(int pixels) {
+        int n = (pixels + pixels + TILE_PIXEL_DIM - 1) / TILE_PIXEL_DIM + 2 * EXTRA_TILE;
+        return n % 2 == 0 ? n + 1 : n;
+    }
+
+    /**
+     * Taille maximale (en pixels) des images conservées de la carte et de la
+     * trace: celle de la fenêtre de tuiles d'une carte occupant tout son
+     * écran. Au-delà (carte à cheval sur plusieurs écrans), les tuiles et la
+     * trace sont dessinées directement à chaque rafraîchissement.
+     *
+     * @return
+     */
+    private long maxLayerPixels() {
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        Dimension dim = gc != null ? gc.getBounds().getSize() : getSize();
+        if (dim.width * dim.height == 0) { // Composant non encore créé
+            dim = getPreferredSize();
+        }
+        return (long) windowTiles(dim.width) * windowTiles(dim.height)
+                * TILE_PIXEL_DIM * TILE_PIXEL_DIM;
+    }
+
     /**
      * Afficher un nombre entier de tuiles par défaut.
      *
@@ -580,13 +932,23 @@ public class IGNMap extends JComponent implements Printable,
     }
 
     /**
-     * Dessiner la carte (tuiles mémorisées dans la table de hachage) et la
+     * Dessiner la carte (tuiles mémorisées dans le cache mémoire) et la
      * trace.
      *
+     * <p>
+     * Les tuiles et la trace sont conservées dans deux images couvrant la
+     * fenêtre de tuiles courante: une translation de la carte se limite à
+     * recopier ces images. Seules les tuiles reçues depuis le dernier
+     * affichage sont ajoutées à la première, décalée lorsque la fenêtre
+     * glisse; la seconde est redessinée lorsque la trace change. Avec un
+     * facteur de zoom, la trace est dessinée directement (tracé vectoriel net
+     * plutôt qu'image agrandie).
+     *
      * @param gInit
      */
     @Override
     protected void paintComponent(Graphics gInit) {
+        long paintStart = System.nanoTime();
         super.paintComponent(gInit);
         Graphics2D g = (Graphics2D) gInit.create();
 
@@ -598,24 +960,20 @@ public class IGNMap extends JComponent implements Printable,
         g.translate(mouseWheelPos.x, mouseWheelPos.y);
         g.scale(scale, scale);
         g.translate(-mouseWheelPos.x, -mouseWheelPos.y);
-        // Recentrer la carte
-        g.translate(mapTranslation.x, mapTranslation.y);
+        // Recentrer la carte (translation entière sans zoom: les images
+        // conservées sont alors simplement recopiées)
+        if (scale == 1) {
+            g.translate(Math.round(mapTranslation.x), Math.round(mapTranslation.y));
+        } else {
+            g.translate(mapTranslation.x, mapTranslation.y);
+        }
         // +------------------------+
         // | Tuiles de la carte IGN |
         // +------------------------+
-        String key;
-        ImageIcon img;
-        for (int r = tileRowMin; r <= tileRowMax; r++) { // Lignes de tuiles
-            for (int c = tileColMin; c <= tileColMax; c++) { // Colonnes de tuiles 
-                key = (dispOrthoImg ? "ortho-" : "")
-                        + "z" + ignScale + "-r" + r + "-c" + c;
-                if (tuiles.containsKey(key)) {
-                    img = tuiles.get(key);
-                    img.paintIcon(IGNMap.this, g,
-                            (c - tileColMin) * TILE_PIXEL_DIM,
-                            (r - tileRowMin) * TILE_PIXEL_DIM);
-                }
-            }
+        if (updateBaseLayer()) {
+            g.drawImage(baseLayer, 0, 0, null);
+        } else { // Fenêtre trop grande: dessiner chaque tuile
+            drawTiles(g, getLayer());
         }
 
         // +--------------+
@@ -674,42 +1032,22 @@ public class IGNMap extends JComponent implements Printable,
         // +-----------+
         // | Trace KML |
         // +-----------+
-        if (kmlList != null && kmlList.size() > 0) {
-            // Définir le pinceau
-            g.setStroke(stroke);
-            g.setPaint(TRANSPARENT_BLUE);
-            // Dessiner la trace
-            g.draw(kmlPath);
-
-            // Points de la trace (mode édition)
-            if (trackEditingMode) {
-                // Remplissage
-                g.setPaint(Color.WHITE);
-                for (int i = 0; i < kmlList.size(); i++) {
-                    g.fill(trackPoints[i]);
-                }
-                // Contour
-                g.setPaint(Color.BLUE);
-                g.setStroke(new BasicStroke(2));
-                for (int i = 0; i < kmlList.size(); i++) {
-                    if (kmlList.get(i).isModified) {
-                        g.setPaint(Color.RED);
-                        g.draw(trackPoints[i]);
-                        g.setPaint(Color.BLUE);
-                    } else {
-                        g.draw(trackPoints[i]);
-                    }
+        if (kmlList != null && kmlList.size() > 0 && segmentGrid != null) {
+            // Image de la trace, sauf pendant le déplacement d'un point
+            // (seuls les segments voisins sont alors redessinés) ou avec un
+            // facteur de zoom
+            if (!pointDragged && scale == 1 && updateTrackLayer()) {
+                g.drawImage(trackLayer, 0, 0, null);
+            } else {
+                // Zone à rafraîchir (dans le repère de la carte)
+                Rectangle clip = g.getClipBounds();
+                if (clip == null) {
+                    clip = new Rectangle(-Integer.MAX_VALUE / 2, -Integer.MAX_VALUE / 2,
+                            Integer.MAX_VALUE, Integer.MAX_VALUE);
                 }
+                drawTrack(g, clip);
             }
 
-            // Dessiner les marqueurs de début et fin
-            imgDepKml.paintIcon(IGNMap.this, g,
-                    (int) (kmlStart.getX() - imgDepKml.getIconWidth() / 2),
-                    (int) (kmlStart.getY() - imgDepKml.getIconHeight()));
-            imgArrKml.paintIcon(IGNMap.this, g,
-                    (int) (kmlEnd.getX() - imgArrKml.getIconWidth() / 2),
-                    (int) (kmlEnd.getY() - imgArrKml.getIconHeight()));
-
             // Sous-trace et position particulière
             if (sGeoIdx1 != -1) {
                 // Sous-trace
@@ -720,18 +1058,292 @@ public class IGNMap extends JComponent implements Printable,
                 }
 
                 // Position particulière
-                GeoLocation gL = kmlList.get(sGeoIdx1);
-                double tileDim = WMTS.getTileDim(ignScale);
-                double mapOrigWmtsX = tileColMin * TILE_PIXEL_DIM;
-                double mapOrigWmtsY = tileRowMin * TILE_PIXEL_DIM;
-                float x = (float) (WMTS.longToWmtsX(gL.longitude) / tileDim * TILE_PIXEL_DIM - mapOrigWmtsX);
-                float y = (float) (WMTS.latToWmtsY(gL.latitude) / tileDim * TILE_PIXEL_DIM - mapOrigWmtsY);
+                double x = wmtsToMapX(pointIndex.getX(sGeoIdx1));
+                double y = wmtsToMapY(pointIndex.getY(sGeoIdx1));
                 intermKml.paintIcon(IGNMap.this, g, (int) (x - intermKml.getIconWidth() / 2),
                         (int) (y - intermKml.getIconHeight()));
             }
 
             g.dispose();
         }
+        tileService.getFetcher().getMetrics().painted(System.nanoTime() - paintStart);
+    }
+
+    /**
+     * Dessiner la trace (segments, points d'édition, marqueurs de début et
+     * de fin) dans un rectangle de la carte.
+     *
+     * @param g contexte graphique dans le repère de la carte
+     * @param area zone à dessiner (élargie de l'épaisseur du trait et des
+     * points d'édition)
+     */
+    private void drawTrack(Graphics2D g, Rectangle area) {
+        // Définir le pinceau
+        g.setStroke(stroke);
+        g.setPaint(TRANSPARENT_BLUE);
+        double margin = STROKE_WIDTH + PT_WIDTH;
+        double xMin = area.getMinX() - margin, yMin = area.getMinY() - margin;
+        double xMax = area.getMaxX() + margin, yMax = area.getMaxY() + margin;
+
+        // Dessiner les segments visibles de la trace
+        visiblePath.reset();
+        int previous = -2;
+        for (int k : visibleSegments(xMin, yMin, xMax, yMax)) {
+            if (k == previous) {
+                continue;
+            }
+            if (k != previous + 1) { // Nouvelle portion
+                visiblePath.moveTo(pathX[k], pathY[k]);
+            }
+            visiblePath.lineTo(pathX[k + 1], pathY[k + 1]);
+            previous = k;
+        }
+        g.draw(visiblePath);
+
+        // Points visibles de la trace (mode édition)
+        if (trackEditingMode) {
+            int[] visible = pointIndex.inRect(mapToWmtsX(xMin), mapToWmtsY(yMin),
+                    mapToWmtsX(xMax), mapToWmtsY(yMax));
+            // Remplissage
+            g.setPaint(Color.WHITE);
+            for (int i : visible) {
+                g.fill(trackPoints[i]);
+            }
+            // Contour
+            g.setPaint(Color.BLUE);
+            g.setStroke(new BasicStroke(2));
+            for (int i : visible) {
+                if (kmlList.get(i).isModified) {
+                    g.setPaint(Color.RED);
+                    g.draw(trackPoints[i]);
+                    g.setPaint(Color.BLUE);
+                } else {
+                    g.draw(trackPoints[i]);
+                }
+            }
+        }
+
+        // Dessiner les marqueurs de début et fin
+        imgDepKml.paintIcon(IGNMap.this, g,
+                (int) (kmlStart.getX() - imgDepKml.getIconWidth() / 2),
+                (int) (kmlStart.getY() - imgDepKml.getIconHeight()));
+        imgArrKml.paintIcon(IGNMap.this, g,
+                (int) (kmlEnd.getX() - imgArrKml.getIconWidth() / 2),
+                (int) (kmlEnd.getY() - imgArrKml.getIconHeight()));
+    }
+
+    /**
+     * Dessiner les tuiles de la fenêtre courante (ou à défaut leur
+     * substitution depuis un niveau voisin).
+     */
+    private void drawTiles(Graphics2D g, int layer) {
+        ImageIcon img;
+        long key;
+        for (int r = tileRowMin; r <= tileRowMax; r++) { // Lignes de tuiles
+            for (int c = tileColMin; c <= tileColMax; c++) { // Colonnes de tuiles
+                key = TileKey.of(layer, ignScale, r, c);
+                img = tuiles.peek(key);
+                if (img == null) { // En attendant: substitution depuis le
+                    // niveau voisin
+                    img = tileService.getFallback(key);
+                }
+                if (img != null) {
+                    img.paintIcon(IGNMap.this, g,
+                            (c - tileColMin) * TILE_PIXEL_DIM,
+                            (r - tileRowMin) * TILE_PIXEL_DIM);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mettre à jour l'image des tuiles de la fenêtre courante. Lorsque la
+     * fenêtre glisse (translation de la carte) ou change de taille, la partie
+     * commune avec l'ancienne fenêtre est décalée et seules les tuiles
+     * nouvellement exposées restent à dessiner; l'image est entièrement
+     * redessinée lorsque le niveau ou la couche changent. Dans tous les cas,
+     * seules les tuiles manquantes ou remplacées y sont dessinées.
+     *
+     * @return false si la fenêtre est trop grande pour être conservée
+     */
+    private boolean updateBaseLayer() {
+        int cols = tileColMax - tileColMin + 1;
+        int rows = tileRowMax - tileRowMin + 1;
+        if (cols <= 0 || rows <= 0
+                || (long) cols * rows * TILE_PIXEL_DIM * TILE_PIXEL_DIM > maxLayerPixels()) {
+            baseLayer = null;
+            return false;
+        }
+        int layer = getLayer();
+        int[] window = {layer, ignScale, tileRowMin, tileRowMax, tileColMin, tileColMax};
+        if (baseLayer == null || !Arrays.equals(window, baseWindow)) {
+            slideBaseLayer(window, cols, rows);
+        }
+        Graphics2D g = null;
+        for (int r = tileRowMin; r <= tileRowMax; r++) {
+            for (int c = tileColMin; c <= tileColMax; c++) {
+                int i = (r - tileRowMin) * cols + (c - tileColMin);
+                if (tileStates[i] == TILE_FINAL) {
+                    continue;
+                }
+                long key = TileKey.of(layer, ignScale, r, c);
+                byte state = TILE_FINAL;
+                ImageIcon img = tuiles.peek(key);
+                if (img == null) {
+                    if (tileStates[i] == TILE_FALLBACK) { // (déjà dessinée)
+                        continue;
+                    }
+                    img = tileService.getFallback(key);
+                    state = TILE_FALLBACK;
+                }
+                if (img != null) {
+                    if (g == null) {
+                        g = baseLayer.createGraphics();
+                    }
+                    img.paintIcon(IGNMap.this, g,
+                            (c - tileColMin) * TILE_PIXEL_DIM,
+                            (r - tileRowMin) * TILE_PIXEL_DIM);
+                    tileStates[i] = state;
+                }
+            }
+        }
+        if (g != null) {
+            g.dispose();
+        }
+        return true;
+    }
+
+    /**
+     * Adapter l'image des tuiles à une nouvelle fenêtre: recopier la partie
+     * commune avec l'ancienne fenêtre (même couche et même niveau), avec son
+     * état, et effacer le reste.
+     */
+    private void slideBaseLayer(int[] window, int cols, int rows) {
+        int[] old = baseWindow;
+        byte[] oldStates = tileStates;
+        // Partie commune (vide si la couche ou le niveau changent)
+        int r0 = 0, r1 = -1, c0 = 0, c1 = -1;
+        if (baseLayer != null && old[0] == window[0] && old[1] == window[1]) {
+            r0 = Math.max(tileRowMin, old[2]);
+            r1 = Math.min(tileRowMax, old[3]);
+            c0 = Math.max(tileColMin, old[4]);
+            c1 = Math.min(tileColMax, old[5]);
+        }
+        // Image conservée si la fenêtre garde la même taille
+        BufferedImage image = baseLayer;
+        if (image == null || image.getWidth() != cols * TILE_PIXEL_DIM
+                || image.getHeight() != rows * TILE_PIXEL_DIM) {
+            image = createLayerImage(cols * TILE_PIXEL_DIM, rows * TILE_PIXEL_DIM,
+                    Transparency.OPAQUE);
+        }
+        Graphics2D g = image.createGraphics();
+        if (r0 <= r1 && c0 <= c1) { // Décaler la partie commune
+            int sx = (c0 - old[4]) * TILE_PIXEL_DIM;
+            int sy = (r0 - old[2]) * TILE_PIXEL_DIM;
+            int dx = (c0 - tileColMin) * TILE_PIXEL_DIM;
+            int dy = (r0 - tileRowMin) * TILE_PIXEL_DIM;
+            int w = (c1 - c0 + 1) * TILE_PIXEL_DIM;
+            int h = (r1 - r0 + 1) * TILE_PIXEL_DIM;
+            if (image == baseLayer) { // (zones source et destination superposées)
+                g.copyArea(sx, sy, w, h, dx - sx, dy - sy);
+            } else {
+                g.drawImage(baseLayer, dx, dy, dx + w, dy + h, sx, sy, sx + w, sy + h, null);
+            }
+        }
+        tileStates = new byte[cols * rows];
+        if (getBackground() != null) {
+            g.setPaint(getBackground());
+        }
+        for (int r = tileRowMin; r <= tileRowMax; r++) {
+            for (int c = tileColMin; c <= tileColMax; c++) {
+                if (r >= r0 && r <= r1 && c >= c0 && c <= c1) {
+                    tileStates[(r - tileRowMin) * cols + (c - tileColMin)]
+                            = oldStates[(r - old[2]) * (old[5] - old[4] + 1) + (c - old[4])];
+                } else if (getBackground() != null) { // Tuile nouvellement exposée
+                    g.fillRect((c - tileColMin) * TILE_PIXEL_DIM,
+                            (r - tileRowMin) * TILE_PIXEL_DIM, TILE_PIXEL_DIM, TILE_PIXEL_DIM);
+                }
+            }
+        }
+        g.dispose();
+        baseLayer = image;
+        baseWindow = window;
+    }
+
+    /**
+     * Une tuile a été reçue (ou remplacée), ou son image de substitution a
+     * changé: la redessiner dans l'image de la carte si elle appartient à la
+     * fenêtre courante.
+     *
+     * @param key clé de la tuile
+     * @return vrai si la tuile appartient à la fenêtre de l'image (ou s'il
+     * n'y a pas d'image)
+     */
+    private boolean invalidateBaseTile(long key) {
+        if (baseLayer == null) {
+            return true;
+        }
+        if (TileKey.layer(key) != baseWindow[0] || TileKey.zoom(key) != baseWindow[1]) {
+            return false;
+        }
+        int r = TileKey.row(key);
+        int c = TileKey.col(key);
+        if (r >= baseWindow[2] && r <= baseWindow[3]
+                && c >= baseWindow[4] && c <= baseWindow[5]) {
+            tileStates[(r - baseWindow[2]) * (baseWindow[5] - baseWindow[4] + 1)
+                    + (c - baseWindow[4])] = TILE_EMPTY;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mettre à jour l'image de la trace, redessinée entièrement lorsque la
+     * fenêtre change ou que la trace a été modifiée (l'image n'est recréée
+     * que si la taille de la fenêtre change).
+     *
+     * @return false si la fenêtre est trop grande pour être conservée
+     */
+    private boolean updateTrackLayer() {
+        int cols = tileColMax - tileColMin + 1;
+        int rows = tileRowMax - tileRowMin + 1;
+        if (cols <= 0 || rows <= 0
+                || (long) cols * rows * TILE_PIXEL_DIM * TILE_PIXEL_DIM > maxLayerPixels()) {
+            trackLayer = null;
+            return false;
+        }
+        int[] window = {ignScale, tileRowMin, tileRowMax, tileColMin, tileColMax};
+        if (trackLayer == null || !Arrays.equals(window, trackWindow)) {
+            if (trackLayer == null || trackLayer.getWidth() != cols * TILE_PIXEL_DIM
+                    || trackLayer.getHeight() != rows * TILE_PIXEL_DIM) {
+                trackLayer = createLayerImage(cols * TILE_PIXEL_DIM, rows * TILE_PIXEL_DIM,
+                        Transparency.TRANSLUCENT);
+            }
+            trackWindow = window;
+            trackLayerValid = false;
+        }
+        if (!trackLayerValid) {
+            Graphics2D g = trackLayer.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, trackLayer.getWidth(), trackLayer.getHeight());
+            g.setComposite(AlphaComposite.SrcOver);
+            drawTrack(g, new Rectangle(0, 0, trackLayer.getWidth(), trackLayer.getHeight()));
+            g.dispose();
+            trackLayerValid = true;
+        }
+        return true;
+    }
+
+    /**
+     * Créer une image au format de l'écran.
+     */
+    private static BufferedImage createLayerImage(int w, int h, int transparency) {
+        GraphicsConfiguration gc = TileFetcher.getScreenConfig();
+        if (gc != null) {
+            return gc.createCompatibleImage(w, h, transparency);
+        }
+        return new BufferedImage(w, h, transparency == Transparency.OPAQUE
+                ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
     }
 
     /**
@@ -743,19 +1355,15 @@ public class IGNMap extends JComponent implements Printable,
      * @return
      */
     private int identifySelectedPoint(MouseEvent e) {
-        if (!trackEditingMode) {
+        if (!trackEditingMode || pointIndex == null) {
             return -1;
         }
         double x = (e.getX() - mouseWheelPos.x) / scale
                 + mouseWheelPos.x - mapTranslation.x;
         double y = (e.getY() - mouseWheelPos.y) / scale
                 + mouseWheelPos.y - mapTranslation.y;
-        for (int i = kmlList.size() - 1; i >= 0; i--) {
-            if (trackPoints[i].contains(x, y)) {
-                return i;
-            }
-        }
-        return -1;
+        return pointIndex.nearest(mapToWmtsX(x), mapToWmtsY(y),
+                PT_WIDTH / 2 * WMTS.getTileDim(ignScale) / TILE_PIXEL_DIM);
     }
 
     /**
@@ -817,9 +1425,16 @@ public class IGNMap extends JComponent implements Printable,
                         }
                     }
                     selectedPointIdx = -1;
-                    int iWidth = (int) (2 * PT_WIDTH);
-                    repaint(mouseDragStart.x - iWidth, mouseDragStart.y - iWidth,
-                            2 * iWidth, 2 * iWidth);
+                    if (pointDragged) { // Fin du déplacement
+                        pointDragged = false;
+                        trackModified();
+                        generateTrackComponents();
+                        repaint();
+                    } else {
+                        int iWidth = (int) (2 * PT_WIDTH);
+                        repaint(mouseDragStart.x - iWidth, mouseDragStart.y - iWidth,
+                                2 * iWidth, 2 * iWidth);
+                    }
                 }
                 break;
             case MouseEvent.MOUSE_EXITED: // Enlever l'affichage de la géolocalisation
@@ -859,11 +1474,16 @@ public class IGNMap extends JComponent implements Printable,
                     } else {
                         g.isModified = false;
                     }
+                    pointIndex.move(selectedPointIdx, trackX(g), trackY(g));
                     updateMouseGeolocationDisplay(e);
 
-                    // Régénérer la trace
-                    generateTrackComponents();
-                    repaint();
+                    if (!pointDragged) { // Début du déplacement
+                        pointDragged = true;
+                        generateTrackComponents(); // (point devenu sommet)
+                        repaint();
+                    } else {
+                        moveSelectedPoint();
+                    }
                 } else {
                     // +-------------------+
                     // | Déplacer la carte |
@@ -874,6 +1494,13 @@ public class IGNMap extends JComponent implements Printable,
                     // Sauvegarder la nouvelle position d'origine
                     mouseDragStart = e.getPoint();
 
+                    // Anticiper les tuiles dans la direction du déplacement
+                    if (prefetcher != null) {
+                        prefetcher.onPan(dx, dy,
+                                getLayer(),
+                                ignScale, tileRowMin, tileRowMax, tileColMin, tileColMax);
+                    }
+
                     // Identifier la tuile centrale actuelle (i.e. contenant la géolocalisation)
                     int tileRowCenter = WMTS.latToTileRow(centerGeoLoc.latitude, ignScale);
                     int tileColCenter = WMTS.longToTileCol(centerGeoLoc.longitude, ignScale);
@@ -894,12 +1521,16 @@ public class IGNMap extends JComponent implements Printable,
                     } else {
                         mapTranslation.x += dx;
                         mapTranslation.y += dy;
+                        updateFocus();
                         repaint();
                     }
                 }
                 break;
             case MouseEvent.MOUSE_MOVED: // Afficher la géolocalisation sous la souris
                 updateMouseGeolocationDisplay(e);
+                // Signaler le point de la trace sous la souris (mode édition)
+                setCursor(Cursor.getPredefinedCursor(identifySelectedPoint(e) != -1
+                        ? Cursor.HAND_CURSOR : Cursor.DEFAULT_CURSOR));
                 break;
         }
     }
@@ -962,8 +1593,16 @@ public class IGNMap extends JComponent implements Printable,
         centerGeoLoc.longitude = WMTS.wmtsXToLongitude(
                 (newCenterX - mapTranslation.x + tileColMin * TILE_PIXEL_DIM)
                 * WMTS.getTileDim(ignScale) / TILE_PIXEL_DIM);
+        updateFocus();
         repaint();
 
+        // Anticiper les tuiles du niveau IGN voisin
+        if (prefetcher != null) {
+            prefetcher.onZoom(scale,
+                    getLayer(),
+                    ignScale, centerGeoLoc, dim.width, dim.height);
+        }
+
         if (scale >= 2 && ignScale < 16) {
             // Passer au niveau d'échelle IGN supérieur lorsque
             // le zoom vaut 2 (jusqu'à concurrence du niveau 16)
@@ -1039,18 +1678,14 @@ public class IGNMap extends JComponent implements Printable,
         // +----------------------------------------+
         // | Repeupler le Path2D pour le chemin KML |
         // +----------------------------------------+
-        GeoLocation g;
-        double tileDim = WMTS.getTileDim(ignScale);
+        double k = TILE_PIXEL_DIM / WMTS.getTileDim(ignScale);
         double mapOrigWmtsX = tileColMin * TILE_PIXEL_DIM;
         double mapOrigWmtsY = tileRowMin * TILE_PIXEL_DIM;
         kmlSubpath.reset();
         float x, y;
         for (int i = idx1; i <= idx2; i++) {
-            g = kmlList.get(i);
-            x = (float) (WMTS.longToWmtsX(g.longitude)
-                    / tileDim * TILE_PIXEL_DIM - mapOrigWmtsX);
-            y = (float) (WMTS.latToWmtsY(g.latitude)
-                    / tileDim * TILE_PIXEL_DIM - mapOrigWmtsY);
+            x = (float) (pointIndex.getX(i) * k - mapOrigWmtsX);
+            y = (float) (pointIndex.getY(i) * k - mapOrigWmtsY);
             if (i == idx1) {
                 kmlSubpath.moveTo(x, y);
             } else {
@@ -1064,7 +1699,10 @@ public class IGNMap extends JComponent implements Printable,
      */
     public void removeKmlPath() {
         kmlList = null;
-        kmlPath.reset();
+        trackModified();
+        pathLength = 0;
+        segmentGrid = null;
+        pointIndex = null;
         trackEditingMode = false;
         selectedPointIdx = -1;
         repaint();
@@ -1087,218 +1725,72 @@ public class IGNMap extends JComponent implements Printable,
     }
 
     /**
-     * SwingWorker permettant de charger les tuiles de l'image sans bloquer
-     * l'Event Dispatch Thread.
-     *
-     * <p>
-     * La méthode doInBackground() se charge de la récupération des tuiles
-     * depuis le thread du SwingWorker. Elle vérifie, au préalable, si la tuile
-     * courante n'est présente déjà dans la table de hachage avant de la
-     * télécharger sur le site de l'IGN (ou de la récupérer dans le cache de
-     * l'application).
-     *
-     * <p>
-     * La méthode process() qui s'exécute depuis l'Event Dispatch Thread se
-     * charge de dessiner chaque image et de la mémoriser, si nécessaire, dans
-     * la mémoire cache.
+     * Demander au service de tuiles la fenêtre de tuiles courante.
      */
-    class TileLoader extends SwingWorker<Void, ImageIcon> {
-
-        private final int tRMin, tRMax, tCMin, tCMax;
-        private final boolean ortho;
-        private final int ignScale;
-
-        int nTileReady = 0;
-
-        public TileLoader(int tRMin, int tRMax, int tCMin, int tCMax, boolean ortho,
-                int ignScale) {
-            this.tRMin = tRMin;
-            this.tRMax = tRMax;
-            this.tCMin = tCMin;
-            this.tCMax = tCMax;
-            this.ortho = ortho;
-            this.ignScale = ignScale;
-        }
-
-        /**
-         * Télécharger toutes les tuiles de l'image
-         *
-         * @return
-         * @throws Exception
-         */
-        @Override
-        protected Void doInBackground() throws Exception {
-            BufferedImage img;
-            URL url;
-            URLConnection connection;
-            String key;
-            String[] desc;
-            int ligne, colonne, z;
-            nTileReady = 0;
-
-            // Récupérer la clé IGN
-            Preferences prefs = Preferences.userNodeForPackage(IGNMap.class);
-            final String cleIGN = prefs.get(IGNMap.KEY_CLE_IGN, IGNMap.CLE_IGN_DEFAULT);
-
-            // Supprimer les tuiles inutiles dans la table de hachage
-            for (Iterator<String> it = tuiles.keySet().iterator();
-                    it.hasNext();) {
-                key = it.next();
-                desc = key.split("-");
-                if (desc.length == 4) { // Image ortho (vue aérienne)
-                    z = Integer.parseInt(desc[1].substring(1));
-                    ligne = Integer.parseInt(desc[2].substring(1));
-                    colonne = Integer.parseInt(desc[3].substring(1));
-                } else { // Carte de randonnée
-                    z = Integer.parseInt(desc[0].substring(1));
-                    ligne = Integer.parseInt(desc[1].substring(1));
-                    colonne = Integer.parseInt(desc[2].substring(1));
-                }
-                if (z != ignScale || ligne < tRMin || ligne > tRMax
-                        || colonne < tCMin || colonne > tCMax) {
-                    it.remove();
-                }
-            }
-
-            // ---- Récupérer les nouvelles utiles ----
-            // indice de la tuile centrale
-            int tileRowCenter = WMTS.latToTileRow(centerGeoLoc.latitude, ignScale);
-            int tileColCenter = WMTS.longToTileCol(centerGeoLoc.longitude, ignScale);
-
-            // Calculer les distances de chaque tuile par rapport au centre
-            int dist;
-            HashMap<Integer, ArrayList<String>> classement = new HashMap<>();
-            ArrayList<String> a;
-            int maxDist = 0;
-            int r, c;
-            for (r = tRMin; r <= tRMax; r++) { // Lignes de tuiles
-                for (c = tCMin; c <= tCMax; c++) { // Colonnes de tuiles 
-                    dist = (int) Math.sqrt(Math.pow(r - tileRowCenter, 2)
-                            + Math.pow(c - tileColCenter, 2));
-                    key = (ortho ? "ortho-" : "")
-                            + "z" + ignScale + "-r" + r + "-c" + c;
-
-                    // Créer l'Arraylist si nécessaire
-                    a = classement.get(dist);
-                    if (a == null) {
-                        classement.put(dist, new ArrayList<String>());
-                        a = classement.get(dist);
-                    }
-                    if (dist > maxDist) {
-                        maxDist = dist;
-                    }
-
-                    // Insérer l'élément
-                    a.add(key);
-                }
-            }
-
-            // Télécharger les tuiles 
-            File cacheFile;
-            Iterator<String> it;
-            String[] tInfo;
-            for (int i = 0; i <= maxDist; i++) {
-                a = classement.get(i);
-                if (a == null) {
-                    continue;
-                }
-                it = a.iterator();
-                while (it.hasNext()) { // Boucle sur les tuiles à la même distance
-                    key = it.next();
-                    cacheFile = new File(localTileCacheDir, key + ".jpg");
-                    if (!tuiles.containsKey(key)) {
-                        if (useLocalTileCache && cacheFile.exists()) { // Récupérer depuis le cache
-                            img = ImageIO.read(cacheFile);
-                        } else { // Télécharger
-
-                            // Récupérer les indices de colonne et ligne
-                            tInfo = key.split("-");
-                            r = 0;
-                            c = 0;
-                            if (tInfo.length == 3) {
-                                r = Integer.parseInt(tInfo[1].substring(1));
-                                c = Integer.parseInt(tInfo[2].substring(1));
-                            } else if (tInfo.length == 4) {
-                                r = Integer.parseInt(tInfo[2].substring(1));
-                                c = Integer.parseInt(tInfo[3].substring(1));
-                            }
-
-                            url = new URL("https://wxs.ign.fr/" + cleIGN + "/wmts/?"
-                                    + "SERVICE=WMTS&REQUEST=GetTile&VERSION=1.0.0"
-                                    + (ortho ? "&LAYER=ORTHOIMAGERY.ORTHOPHOTOS"
-                                            : "&LAYER=GEOGRAPHICALGRIDSYSTEMS.MAPS")
-                                    + "&STYLE=normal"
-                                    + "&TILEMATRIXSET=PM&TILEMATRIX=" + ignScale
-                                    + "&TILEROW=" + r + "&TILECOL=" + c
-                                    + "&FORMAT=image/jpeg");
-                            String proxyHostname = prefs.get(DesktopFrame.PROXY_HOSTNAME_KEY, "");
-                            if (!"".equalsIgnoreCase(proxyHostname)) { // utiliser un proxy
-                                int proxyPortNum = Integer.parseInt(
-                                        prefs.get(DesktopFrame.PROXY_PORT_NUMBER_KEY, "0"));
-                                connection
-                                        = (HttpURLConnection) url.openConnection(new Proxy(Proxy.Type.HTTP,
-                                                new InetSocketAddress(proxyHostname, proxyPortNum)));
-                            } else { // Pas de proxy
-                                connection = (HttpURLConnection) url.openConnection();
-                            }
-                            connection.setRequestProperty("Referer", "http://localhost/IGN/");
-                            img = ImageIO.read(connection.getInputStream());
-                            if (useLocalTileCache) { // Sauvegarder l'image dans le cache
-                                ImageIO.write(img, "jpg", cacheFile);
-                            }
-                        }
-                        publish(new ImageIcon(img, key));
-                    } else {
-                        publish(tuiles.get(key));
-                    }
-
-                }
-            }
+    private void requestTiles() {
+        updateFocus(); // (priorité des nouvelles tuiles)
+        subscription.setWindow(getLayer(),
+                ignScale, tileRowMin, tileRowMax, tileColMin, tileColMax);
+        updateProgress();
+    }
 
-            return null;
+    /**
+     * Indiquer au service de tuiles la partie de la fenêtre affichée à
+     * l'écran, pour télécharger en priorité les tuiles visibles les plus
+     * proches du centre.
+     */
+    private void updateFocus() {
+        Dimension dim = getSize();
+        if (dim.width * dim.height == 0) { // Composant non encore créé
+            dim = getPreferredSize();
         }
+        // Coins de l'écran dans la fenêtre de tuiles (en pixels de tuile)
+        double x0 = (0 - mouseWheelPos.x) / scale + mouseWheelPos.x - mapTranslation.x;
+        double y0 = (0 - mouseWheelPos.y) / scale + mouseWheelPos.y - mapTranslation.y;
+        double x1 = x0 + dim.width / scale;
+        double y1 = y0 + dim.height / scale;
+        subscription.setFocus(tileRowMin + (y0 + y1) / 2 / TILE_PIXEL_DIM,
+                tileColMin + (x0 + x1) / 2 / TILE_PIXEL_DIM,
+                tileRowMin + (int) Math.floor(y0 / TILE_PIXEL_DIM),
+                tileRowMin + (int) Math.floor(y1 / TILE_PIXEL_DIM),
+                tileColMin + (int) Math.floor(x0 / TILE_PIXEL_DIM),
+                tileColMin + (int) Math.floor(x1 / TILE_PIXEL_DIM));
+    }
 
-        /**
-         * Afficher la tuile issue du téléchargement.
-         *
-         * @param chunks
-         */
-        @Override
-        protected void process(List<ImageIcon> chunks) {
-            super.process(chunks);
-            int ligne, colonne;
-            String key;
-            String[] desc;
-            Graphics2D g = (Graphics2D) IGNMap.this.getGraphics();
-
-            g.translate(mapTranslation.x, mapTranslation.y);
-            for (ImageIcon i : chunks) {
-                key = i.getDescription();
-                desc = key.split("-");
-                if (desc.length == 4) { // Image ortho (vue aérienne)
-                    ligne = Integer.parseInt(desc[2].substring(1));
-                    colonne = Integer.parseInt(desc[3].substring(1));
-                } else { // Carte de randonnée
-                    ligne = Integer.parseInt(desc[1].substring(1));
-                    colonne = Integer.parseInt(desc[2].substring(1));
-                }
-                if (!tuiles.containsKey(key)) {
-                    tuiles.put(key, i);
-                }
-                repaint();
-                nTileReady++;
-                progress.setValue(nTileReady * 100 / (tileRowMax - tileRowMin + 1)
-                        / (tileColMax - tileColMin + 1));
-            }
-            g.dispose();
+    /**
+     * Mettre à jour la barre de progression (et, une fois la fenêtre
+     * complète, l'info-bulle de statistiques).
+     */
+    private void updateProgress() {
+        int n = subscription.getPendingCount();
+        if (n == 0) {
+            progress.setValue(0);
+            progress.setToolTipText(tileService.toString());
+        } else {
+            int nTiles = subscription.getWindowSize();
+            progress.setValue(Math.max(0, nTiles - n) * 100 / nTiles);
         }
+    }
 
-        @Override
-        protected void done() {
-            progress.setValue(0);
-            repaint();
+    /**
+     * Reprendre l'abonnement aux tuiles lorsque le composant est (ré-)inséré.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        if (tileRowMax > tileRowMin) {
+            requestTiles();
         }
+    }
 
+    /**
+     * Libérer les tuiles attendues lorsque le composant est retiré (fenêtre
+     * fermée).
+     */
+    @Override
+    public void removeNotify() {
+        subscription.close();
+        super.removeNotify();
     }
 
 }
@@ -0,0 +1,186 @@
+package fr.rg.java.jrandoIGN;
+
+import java.util.Arrays;
+
+/**
+ * Table de hachage à clés primitives de type long (adressage ouvert, sondage
+ * linéaire). Les recherches n'allouent aucun objet.
+ *
+ * <p>
+ * Les clés négatives sont réservées (les clés de tuiles sont toujours
+ * positives).
+ *
+ * @param <V> type des valeurs
+ * @see TileKey
+ */
+public class LongTileMap<V> {
+
+    private static final long FREE = -1L;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+    private int mask;
+
+    public LongTileMap() {
+        this(64);
+    }
+
+    /**
+     * Créer une table pour un nombre d'éléments donné.
+     *
+     * @param expected nombre d'éléments attendus
+     */
+    public LongTileMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Indice de la case contenant la clé ou -1.
+     */
+    private int indexOf(long key) {
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Associer une valeur à une clé.
+     *
+     * @param key clé (positive)
+     * @param value
+     * @return l'ancienne valeur ou null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Clé négative: " + key);
+        }
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 4 > keys.length * 3) { // Taux de remplissage > 75%
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Supprimer une clé (décalage arrière des éléments suivants pour
+     * conserver les chaînes de sondage).
+     *
+     * @param key
+     * @return l'ancienne valeur ou null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == FREE) {
+                break;
+            }
+            int k = slot(keys[j]);
+            // Déplacer l'élément j en i s'il ne se trouve pas entre i et j
+            if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = FREE;
+        values[i] = null;
+        size--;
+        return old;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int j = slot(oldKeys[i]);
+                while (keys[j] != FREE) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Copie des clés présentes dans la table.
+     *
+     * @return
+     */
+    public long[] keys() {
+        long[] res = new long[size];
+        int n = 0;
+        for (long k : keys) {
+            if (k != FREE) {
+                res[n++] = k;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,115 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Tuiles d'un fichier MBTiles (base SQLite, table
+ * tiles(zoom_level, tile_column, tile_row, tile_data)).
+ *
+ * <p>
+ * Conformément à la spécification MBTiles, les lignes sont numérotées du sud
+ * vers le nord (schéma TMS) et sont donc inversées par rapport à la grille
+ * WMTS. Un fichier ne contient qu'un jeu de tuiles: il est utilisé quelle que
+ * soit la couche demandée, et la carte ne peut être superposée à la vue
+ * aérienne (hasLayers()).
+ *
+ * <p>
+ * L'accès passe par JDBC (URL jdbc:sqlite:): un pilote SQLite (par exemple
+ * sqlite-jdbc) doit être présent dans le classpath.
+ */
+public class MBTilesTileSource implements TileSource {
+
+    private final File file;
+    private final Connection connection;
+    private final PreparedStatement select;
+
+    /**
+     * Ouvrir un fichier MBTiles en lecture.
+     *
+     * @param file fichier .mbtiles
+     * @throws IOException si le fichier n'existe pas ou ne peut être ouvert
+     * (pilote SQLite absent, base invalide)
+     */
+    public MBTilesTileSource(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Fichier MBTiles introuvable: " + file);
+        }
+        this.file = file;
+        try {
+            DriverManager.getDriver("jdbc:sqlite:");
+        } catch (SQLException ex) {
+            throw new IOException("Pilote JDBC SQLite (sqlite-jdbc) absent du"
+                    + " classpath: " + file + " ne peut être lu", ex);
+        }
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+            connection.setReadOnly(true);
+            select = connection.prepareStatement("SELECT tile_data FROM tiles"
+                    + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+        } catch (SQLException ex) {
+            throw new IOException("Ouverture de " + file + " impossible", ex);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return file.getPath();
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * Un fichier MBTiles ne contient qu'un jeu de tuiles.
+     */
+    @Override
+    public boolean hasLayers() {
+        return false;
+    }
+
+    /**
+     * Lire une tuile (les requêtes sont sérialisées sur l'unique connexion).
+     */
+    @Override
+    public synchronized ByteBuffer getTile(long key) throws IOException {
+        int zoom = TileKey.zoom(key);
+        try {
+            select.setInt(1, zoom);
+            select.setInt(2, TileKey.col(key));
+            select.setInt(3, (1 << zoom) - 1 - TileKey.row(key)); // (TMS)
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                byte[] data = rs.getBytes(1);
+                return data == null ? null : ByteBuffer.wrap(data);
+            }
+        } catch (SQLException ex) {
+            throw new IOException(TileKey.toString(key), ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            select.close();
+            connection.close();
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
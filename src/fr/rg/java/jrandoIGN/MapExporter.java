@@ -0,0 +1,392 @@
+package fr.rg.java.jrandoIGN;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import javax.imageio.ImageIO;
+
+/**
+ * Export d'une carte grand format (tuiles et trace) dans une image PNG,
+ * sans interface graphique.
+ *
+ * <p>
+ * L'image est produite par bandes d'une rangée de tuiles, écrites sur le
+ * disque au fur et à mesure (PngStripWriter): seules deux rangées de tuiles
+ * sont présentes en mémoire, quelle que soit la taille de l'image. Les tuiles
+ * de la rangée suivante sont récupérées en parallèle (depuis le cache disque
+ * ou à défaut le serveur) pendant la composition de la rangée courante.
+ *
+ * <p>
+ * Un fichier de géoréférencement (.pgw, coordonnées Web Mercator EPSG:3857)
+ * est écrit à côté de l'image.
+ *
+ * <p>
+ * Utilisation sans interface graphique:
+ * <pre>
+ * java -Djava.awt.headless=true fr.rg.java.jrandoIGN.MapExporter \
+ *     fichier.kml carte.png [zoom] [maps|ortho|blend] [marge_m]
+ * </pre>
+ * La couche "blend" superpose la carte à la vue aérienne avec l'opacité des
+ * préférences (TileService.KEY_BLEND_OPACITY).
+ */
+public class MapExporter {
+
+    // Valeurs par défaut
+    public static final int DEFAULT_ZOOM = 15;
+    public static final int DEFAULT_MARGIN_M = 300;
+
+    private static final int TILE_PIXEL_DIM = 256;
+    // Fond des tuiles manquantes
+    private static final Color MISSING_TILE = new Color(230, 230, 230);
+    // Pour dessiner la trace (comme IGNMap)
+    private static final BasicStroke STROKE
+            = new BasicStroke(5, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_BEVEL);
+    private static final Color TRANSPARENT_BLUE = new Color(0f, 0f, 1.0f, 0.8f);
+
+    /**
+     * Suivi de l'avancement de l'export.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Appelée (depuis le thread de l'export) après chaque bande.
+         *
+         * @param done bandes écrites
+         * @param total nombre total de bandes
+         */
+        void onProgress(int done, int total);
+    }
+
+    private final TilePackStore store;
+    private final TileFetcher fetcher;
+    private final int parallelism;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Créer un export.
+     *
+     * @param store cache disque (ou null)
+     * @param fetcher moteur de téléchargement des tuiles absentes du cache (ou
+     * null pour n'utiliser que le cache)
+     * @param parallelism nombre de tuiles récupérées simultanément
+     */
+    public MapExporter(TilePackStore store, TileFetcher fetcher, int parallelism) {
+        this.store = store;
+        this.fetcher = fetcher;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Emprise d'une trace augmentée d'une marge.
+     *
+     * @param track géolocalisations de la trace
+     * @param marginM marge (en mètres)
+     * @return {longitude min, latitude min, longitude max, latitude max}
+     */
+    public static double[] getBounds(List<GeoLocation> track, double marginM) {
+        double[] b = {Double.MAX_VALUE, Double.MAX_VALUE,
+            -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (GeoLocation g : track) {
+            b[0] = Math.min(b[0], g.longitude);
+            b[1] = Math.min(b[1], g.latitude);
+            b[2] = Math.max(b[2], g.longitude);
+            b[3] = Math.max(b[3], g.latitude);
+        }
+        // Marge en degrés (1° de latitude ~ 111 km)
+        double dLat = marginM / 111_320;
+        double dLong = dLat / Math.cos(Math.toRadians((b[1] + b[3]) / 2));
+        b[0] -= dLong;
+        b[1] -= dLat;
+        b[2] += dLong;
+        b[3] += dLat;
+        return b;
+    }
+
+    /**
+     * Exporter une emprise dans une image PNG.
+     *
+     * @param layer couche
+     * @param zoom niveau IGN
+     * @param bounds {longitude min, latitude min, longitude max, latitude max}
+     * @param track trace à dessiner (ou null)
+     * @param png fichier image (le fichier .pgw est créé à côté)
+     * @param listener suivi de l'avancement (ou null)
+     * @return false si l'export a été interrompu (le fichier est alors
+     * supprimé)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean export(int layer, int zoom, double[] bounds, List<GeoLocation> track,
+            File png, ProgressListener listener) throws IOException, InterruptedException {
+        // Emprise en pixels dans la grille de tuiles du niveau
+        double pixelDim = WMTS.getTileDim(zoom) / TILE_PIXEL_DIM; // m/pixel
+        long x0 = (long) Math.floor(WMTS.longToWmtsX(bounds[0]) / pixelDim);
+        long x1 = (long) Math.ceil(WMTS.longToWmtsX(bounds[2]) / pixelDim);
+        long y0 = (long) Math.floor(WMTS.latToWmtsY(bounds[3]) / pixelDim);
+        long y1 = (long) Math.ceil(WMTS.latToWmtsY(bounds[1]) / pixelDim);
+        if (x1 - x0 > Integer.MAX_VALUE / 4 || y1 - y0 > Integer.MAX_VALUE) {
+            throw new IOException("Image trop grande: " + (x1 - x0) + "x" + (y1 - y0));
+        }
+        int width = (int) (x1 - x0);
+        int height = (int) (y1 - y0);
+        int cMin = (int) (x0 / TILE_PIXEL_DIM);
+        int cMax = (int) ((x1 - 1) / TILE_PIXEL_DIM);
+        int rMin = (int) (y0 / TILE_PIXEL_DIM);
+        int rMax = (int) ((y1 - 1) / TILE_PIXEL_DIM);
+
+        // Trace dans le repère des pixels de la grille
+        Path2D path = null;
+        BufferedImage start = null, end = null;
+        if (track != null && !track.isEmpty()) {
+            start = ImageIO.read(MapExporter.class.getResource("/img/depart_kml.png"));
+            end = ImageIO.read(MapExporter.class.getResource("/img/arrivee_kml.png"));
+            path = new Path2D.Double();
+            for (int i = 0; i < track.size(); i++) {
+                GeoLocation g = track.get(i);
+                double x = WMTS.longToWmtsX(g.longitude) / pixelDim;
+                double y = WMTS.latToWmtsY(g.latitude) / pixelDim;
+                if (i == 0) {
+                    path.moveTo(x, y);
+                } else {
+                    path.lineTo(x, y);
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        BufferedImage strip = new BufferedImage(width, TILE_PIXEL_DIM,
+                BufferedImage.TYPE_INT_RGB);
+        PngStripWriter writer = new PngStripWriter(
+                new BufferedOutputStream(new FileOutputStream(png), 1 << 16), width, height);
+        boolean complete = false;
+        try {
+            List<Future<BufferedImage>> next = fetchRow(executor, layer, zoom, rMin, cMin, cMax);
+            for (int r = rMin; r <= rMax && !cancelled; r++) {
+                List<Future<BufferedImage>> row = next;
+                // Récupérer la rangée suivante pendant la composition
+                if (r < rMax) {
+                    next = fetchRow(executor, layer, zoom, r + 1, cMin, cMax);
+                }
+
+                // Composer la bande (origine: pixel (x0, r * TILE_PIXEL_DIM))
+                Graphics2D g = strip.createGraphics();
+                g.setPaint(MISSING_TILE);
+                g.fillRect(0, 0, width, TILE_PIXEL_DIM);
+                int dx = (int) (cMin * (long) TILE_PIXEL_DIM - x0);
+                for (int c = cMin; c <= cMax; c++) {
+                    BufferedImage tile = getTile(row.get(c - cMin));
+                    if (tile != null) {
+                        g.drawImage(tile, dx + (c - cMin) * TILE_PIXEL_DIM, 0, null);
+                    }
+                }
+                if (path != null) {
+                    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                            RenderingHints.VALUE_ANTIALIAS_ON);
+                    g.translate(-x0, -r * (double) TILE_PIXEL_DIM);
+                    g.setStroke(STROKE);
+                    g.setPaint(TRANSPARENT_BLUE);
+                    g.draw(path);
+                    drawMarker(g, start, track.get(0), pixelDim);
+                    drawMarker(g, end, track.get(track.size() - 1), pixelDim);
+                }
+                g.dispose();
+
+                // Écrire les lignes de la bande comprises dans l'emprise
+                long top = Math.max(y0, r * (long) TILE_PIXEL_DIM);
+                long bottom = Math.min(y1, (r + 1) * (long) TILE_PIXEL_DIM);
+                writer.writeRows(strip, (int) (top - r * (long) TILE_PIXEL_DIM),
+                        (int) (bottom - top));
+                if (listener != null) {
+                    listener.onProgress(r - rMin + 1, rMax - rMin + 1);
+                }
+            }
+            complete = !cancelled;
+        } finally {
+            executor.shutdownNow();
+            if (complete) {
+                writer.close();
+            } else { // (image incomplète)
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(MapExporter.class.getName()).log(Level.FINE, null, ex);
+                }
+                png.delete();
+            }
+        }
+        if (!complete) {
+            return false;
+        }
+        writeWorldFile(png, pixelDim, x0, y0);
+        return true;
+    }
+
+    /**
+     * Soumettre la récupération d'une rangée de tuiles.
+     */
+    private List<Future<BufferedImage>> fetchRow(ExecutorService executor, int layer,
+            int zoom, int r, int cMin, int cMax) {
+        List<Future<BufferedImage>> row = new ArrayList<>(cMax - cMin + 1);
+        final float opacity = Preferences.userNodeForPackage(IGNMap.class).getInt(
+                TileService.KEY_BLEND_OPACITY, TileService.DEFAULT_BLEND_OPACITY) / 100f;
+        for (int c = cMin; c <= cMax; c++) {
+            final long key = TileKey.of(layer, zoom, r, c);
+            row.add(executor.submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() throws Exception {
+                    if (TileKey.layer(key) != TileKey.LAYER_BLEND) {
+                        return readTile(key);
+                    }
+                    // Carte sur vue aérienne
+                    int tr = TileKey.row(key);
+                    int tc = TileKey.col(key);
+                    BufferedImage under = readTile(TileKey.of(TileKey.LAYER_ORTHO, zoom, tr, tc));
+                    BufferedImage over = readTile(TileKey.of(TileKey.LAYER_MAPS, zoom, tr, tc));
+                    return under == null || over == null ? null
+                            : TileFetcher.blend(under, over, opacity);
+                }
+            }));
+        }
+        return row;
+    }
+
+    /**
+     * Lire une tuile depuis le cache disque ou à défaut la télécharger.
+     *
+     * @param key clé de la tuile
+     * @return image décodée ou null si elle n'a pas pu être récupérée
+     */
+    private BufferedImage readTile(long key) throws IOException {
+        ByteBuffer data = store == null ? null : store.get(key);
+        if (data == null && fetcher != null && !cancelled) {
+            data = fetcher.download(key, store);
+        }
+        return data == null ? null : TileFetcher.decode(data);
+    }
+
+    /**
+     * Attendre une tuile.
+     *
+     * @return image ou null si elle n'a pas pu être récupérée
+     */
+    private static BufferedImage getTile(Future<BufferedImage> f)
+            throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(MapExporter.class.getName()).log(Level.FINE, null, ex.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Dessiner un marqueur (pointe en bas) sur une géolocalisation.
+     */
+    private static void drawMarker(Graphics2D g, BufferedImage img, GeoLocation gL,
+            double pixelDim) {
+        double x = WMTS.longToWmtsX(gL.longitude) / pixelDim;
+        double y = WMTS.latToWmtsY(gL.latitude) / pixelDim;
+        g.drawImage(img, (int) Math.round(x - img.getWidth() / 2.0),
+                (int) Math.round(y - img.getHeight()), null);
+    }
+
+    /**
+     * Écrire le fichier de géoréférencement de l'image (centre du pixel
+     * supérieur gauche et taille des pixels, en Web Mercator).
+     */
+    private static void writeWorldFile(File png, double pixelDim, long x0, long y0)
+            throws IOException {
+        String name = png.getName();
+        int dot = name.lastIndexOf('.');
+        File wld = new File(png.getParentFile(),
+                (dot > 0 ? name.substring(0, dot) : name) + ".pgw");
+        try (PrintWriter w = new PrintWriter(wld, "US-ASCII")) {
+            w.println(String.format(Locale.ROOT, "%.10f", pixelDim));
+            w.println("0.0");
+            w.println("0.0");
+            w.println(String.format(Locale.ROOT, "%.10f", -pixelDim));
+            w.println(String.format(Locale.ROOT, "%.4f",
+                    WMTS.wmtsXToMercator((x0 + 0.5) * pixelDim)));
+            w.println(String.format(Locale.ROOT, "%.4f",
+                    WMTS.wmtsYToMercator((y0 + 0.5) * pixelDim)));
+        }
+    }
+
+    /**
+     * Interrompre l'export.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Export sans interface graphique.
+     *
+     * @param args fichier KML, image PNG, niveau de zoom, couche, marge (m)
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: MapExporter fichier.kml carte.png [zoom] [maps|ortho|blend] [marge_m]");
+            System.exit(1);
+        }
+        HashMap<String, Object> b = new TrackReader().extractFromKML(args[0]);
+        @SuppressWarnings("unchecked")
+        List<GeoLocation> track = (List<GeoLocation>) b.get(TrackReader.LOCATIONS_KEY);
+        if (track == null || track.isEmpty()) {
+            System.err.println("Aucune position dans " + args[0]);
+            System.exit(1);
+        }
+        int zoom = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ZOOM;
+        int layer = TileKey.LAYER_MAPS;
+        if (args.length > 3 && "ortho".equalsIgnoreCase(args[3])) {
+            layer = TileKey.LAYER_ORTHO;
+        } else if (args.length > 3 && "blend".equalsIgnoreCase(args[3])) {
+            layer = TileKey.LAYER_BLEND;
+        }
+        double margin = args.length > 4 ? Double.parseDouble(args[4]) : DEFAULT_MARGIN_M;
+
+        TilePackStore store = TilePackStore.open(IGNMap.getDefaultTileCacheDir());
+        MapExporter exporter = new MapExporter(store,
+                new TileFetcher(TileFetcher.DEFAULT_MAX_REQUESTS),
+                TileFetcher.DEFAULT_MAX_REQUESTS);
+        File png = new File(args[1]);
+        exporter.export(layer, zoom, getBounds(track, margin), track, png,
+                new ProgressListener() {
+            private int lastPercent = -1;
+
+            @Override
+            public void onProgress(int done, int total) {
+                int percent = done * 100 / total;
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    System.out.printf("%3d%% (%d/%d bandes)%n", percent, done, total);
+                }
+            }
+        });
+        store.flush();
+        System.out.println(png + " écrit");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,170 @@
+package fr.rg.java.jrandoIGN;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Écriture d'une image PNG (RVB 8 bits) par bandes horizontales successives.
+ *
+ * <p>
+ * Seules la ligne précédente (pour le filtre) et les données compressées en
+ * attente d'un bloc IDAT sont conservées en mémoire: la taille de l'image
+ * n'est limitée que par celle du fichier.
+ *
+ * <p>
+ * Utilisation:
+ * <pre>
+ * PngStripWriter w = new PngStripWriter(out, largeur, hauteur);
+ * w.writeRows(bande1, 0, 256);
+ * w.writeRows(bande2, 0, 256);
+ * ...
+ * w.close();
+ * </pre>
+ */
+public class PngStripWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    // Taille maximale d'un bloc IDAT (octets)
+    private static final int IDAT_SIZE = 64 * 1024;
+    // Filtre de Paeth (le plus efficace sur les images photographiques)
+    private static final int FILTER_PAETH = 4;
+
+    private final DataOutputStream out;
+    private final int width, height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final ByteArrayOutputStream idat = new ByteArrayOutputStream(IDAT_SIZE + 1024);
+    private final DeflaterOutputStream zout;
+    private byte[] prev, cur, filtered;
+    private int[] argb;
+    private int rowsWritten = 0;
+
+    /**
+     * Commencer l'écriture d'une image.
+     *
+     * @param out flux de destination (fermé par close())
+     * @param width largeur de l'image (pixels)
+     * @param height hauteur de l'image (pixels)
+     * @throws IOException
+     */
+    public PngStripWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(width + "x" + height);
+        }
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        prev = new byte[3 * width];
+        cur = new byte[3 * width];
+        filtered = new byte[1 + 3 * width];
+        argb = new int[width];
+        zout = new DeflaterOutputStream(idat, deflater, 8192);
+
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(width);
+        d.writeInt(height);
+        d.writeByte(8); // bits par composante
+        d.writeByte(2); // RVB
+        d.writeByte(0); // compression deflate
+        d.writeByte(0); // filtrage adaptatif
+        d.writeByte(0); // pas d'entrelacement
+        writeChunk("IHDR", ihdr.toByteArray(), ihdr.size());
+    }
+
+    /**
+     * Ajouter des lignes à l'image.
+     *
+     * @param strip bande contenant les lignes (de même largeur que l'image)
+     * @param y0 première ligne de la bande à écrire
+     * @param nRows nombre de lignes à écrire
+     * @throws IOException
+     */
+    public void writeRows(BufferedImage strip, int y0, int nRows) throws IOException {
+        if (strip.getWidth() != width) {
+            throw new IllegalArgumentException("Largeur de bande " + strip.getWidth()
+                    + " au lieu de " + width);
+        }
+        if (rowsWritten + nRows > height) {
+            throw new IllegalStateException("Image complète");
+        }
+        for (int y = y0; y < y0 + nRows; y++) {
+            strip.getRGB(0, y, width, 1, argb, 0, width);
+            for (int x = 0, i = 0; x < width; x++) {
+                int p = argb[x];
+                cur[i++] = (byte) (p >> 16);
+                cur[i++] = (byte) (p >> 8);
+                cur[i++] = (byte) p;
+            }
+            filterPaeth();
+            zout.write(filtered);
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+            rowsWritten++;
+            if (idat.size() >= IDAT_SIZE) {
+                flushIdat();
+            }
+        }
+    }
+
+    /**
+     * Terminer l'image et fermer le flux.
+     *
+     * @throws IOException si des lignes manquent
+     */
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Image incomplète: " + rowsWritten + "/" + height
+                        + " lignes");
+            }
+            zout.finish();
+            flushIdat();
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void filterPaeth() {
+        filtered[0] = FILTER_PAETH;
+        for (int i = 0; i < cur.length; i++) {
+            int a = i >= 3 ? cur[i - 3] & 0xff : 0; // gauche
+            int b = rowsWritten > 0 ? prev[i] & 0xff : 0; // dessus
+            int c = i >= 3 && rowsWritten > 0 ? prev[i - 3] & 0xff : 0; // diagonale
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            int pred = pa <= pb && pa <= pc ? a : (pb <= pc ? b : c);
+            filtered[i + 1] = (byte) (cur[i] - pred);
+        }
+    }
+
+    private void flushIdat() throws IOException {
+        if (idat.size() > 0) {
+            writeChunk("IDAT", idat.toByteArray(), idat.size());
+            idat.reset();
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(t);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
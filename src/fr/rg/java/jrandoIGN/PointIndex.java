@@ -0,0 +1,313 @@
+package fr.rg.java.jrandoIGN;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Index spatial modifiable des points d'une trace (coordonnées WMTS en
+ * mètres), pour retrouver rapidement le point situé sous la souris.
+ *
+ * <p>
+ * Les points sont répartis dans des cellules carrées (table de hachage à clé
+ * long): seules les cellules voisines de la position recherchée sont
+ * examinées. Les points sont désignés par leur indice dans la trace; un
+ * déplacement ne modifie que deux cellules, une insertion ou une suppression
+ * décale les indices suivants sans reconstruire l'index.
+ *
+ * <p>
+ * Les coordonnées WMTS ne dépendent ni du niveau de zoom ni de la position de
+ * la carte: l'index n'est construit qu'une fois par trace et conserve les
+ * coordonnées projetées de chaque point (seuls les points modifiés sont
+ * projetés à nouveau), dont se déduisent les pixels de la carte par une
+ * simple transformation affine.
+ */
+public class PointIndex {
+
+    // Décalage des numéros de cellule (les clés doivent être positives)
+    private static final long OFFSET = 1L << 30;
+
+    /**
+     * Points d'une cellule.
+     */
+    private static final class Cell {
+
+        int[] items = new int[4];
+        int n = 0;
+
+        void add(int i) {
+            if (n == items.length) {
+                items = Arrays.copyOf(items, 2 * n);
+            }
+            items[n++] = i;
+        }
+
+        void remove(int i) {
+            for (int k = 0; k < n; k++) {
+                if (items[k] == i) {
+                    items[k] = items[--n];
+                    return;
+                }
+            }
+        }
+    }
+
+    private final double cellSize;
+    private final LongTileMap<Cell> cells = new LongTileMap<>();
+    private final ArrayList<Cell> allCells = new ArrayList<>(); // (parcours)
+    private double[] xs = new double[16], ys = new double[16];
+    private int size = 0;
+
+    /**
+     * Créer un index vide.
+     *
+     * @param cellSize côté des cellules (m)
+     */
+    public PointIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Nombre de points.
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Abscisse d'un point.
+     *
+     * @param i indice du point
+     * @return
+     */
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    /**
+     * Ordonnée d'un point.
+     *
+     * @param i indice du point
+     * @return
+     */
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * Copie des abscisses des points.
+     *
+     * @return
+     */
+    public double[] copyX() {
+        return Arrays.copyOf(xs, size);
+    }
+
+    /**
+     * Copie des ordonnées des points.
+     *
+     * @return
+     */
+    public double[] copyY() {
+        return Arrays.copyOf(ys, size);
+    }
+
+    /**
+     * Ajouter un point en fin de trace.
+     *
+     * @param x
+     * @param y
+     */
+    public void add(double x, double y) {
+        insert(size, x, y);
+    }
+
+    /**
+     * Insérer un point (les indices suivants sont décalés).
+     *
+     * @param i indice du nouveau point
+     * @param x
+     * @param y
+     */
+    public void insert(int i, double x, double y) {
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, 2 * size);
+            ys = Arrays.copyOf(ys, 2 * size);
+        }
+        if (i < size) {
+            System.arraycopy(xs, i, xs, i + 1, size - i);
+            System.arraycopy(ys, i, ys, i + 1, size - i);
+            shift(i, 1);
+        }
+        xs[i] = x;
+        ys[i] = y;
+        size++;
+        cellAt(x, y, true).add(i);
+    }
+
+    /**
+     * Supprimer un point (les indices suivants sont décalés).
+     *
+     * @param i indice du point
+     */
+    public void remove(int i) {
+        cellAt(xs[i], ys[i], false).remove(i);
+        System.arraycopy(xs, i + 1, xs, i, size - i - 1);
+        System.arraycopy(ys, i + 1, ys, i, size - i - 1);
+        size--;
+        shift(i + 1, -1);
+    }
+
+    /**
+     * Déplacer un point.
+     *
+     * @param i indice du point
+     * @param x nouvelle abscisse
+     * @param y nouvelle ordonnée
+     */
+    public void move(int i, double x, double y) {
+        Cell from = cellAt(xs[i], ys[i], false);
+        Cell to = cellAt(x, y, true);
+        if (from != to) {
+            from.remove(i);
+            to.add(i);
+        }
+        xs[i] = x;
+        ys[i] = y;
+    }
+
+    /**
+     * Point le plus proche d'une position (à égalité, le dernier de la trace,
+     * dessiné au-dessus des autres).
+     *
+     * @param x
+     * @param y
+     * @param radius distance maximale
+     * @return indice du point ou -1 si aucun point n'est assez proche
+     */
+    public int nearest(double x, double y, double radius) {
+        int best = -1;
+        double bestD2 = radius * radius;
+        for (Cell cell : cellsIn(x - radius, y - radius, x + radius, y + radius)) {
+            for (int k = 0; k < cell.n; k++) {
+                int i = cell.items[k];
+                double dx = xs[i] - x;
+                double dy = ys[i] - y;
+                double d2 = dx * dx + dy * dy;
+                if (d2 < bestD2 || (d2 == bestD2 && i > best)) {
+                    bestD2 = d2;
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Points situés à moins d'une certaine distance d'une position.
+     *
+     * @param x
+     * @param y
+     * @param radius
+     * @return indices croissants des points
+     */
+    public int[] within(double x, double y, double radius) {
+        return collect(x - radius, y - radius, x + radius, y + radius, x, y, radius);
+    }
+
+    /**
+     * Points situés dans un rectangle.
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @return indices croissants des points
+     */
+    public int[] inRect(double xMin, double yMin, double xMax, double yMax) {
+        return collect(xMin, yMin, xMax, yMax, 0, 0, -1);
+    }
+
+    private int[] collect(double xMin, double yMin, double xMax, double yMax,
+            double cx, double cy, double radius) {
+        int[] found = new int[16];
+        int n = 0;
+        for (Cell cell : cellsIn(xMin, yMin, xMax, yMax)) {
+            for (int k = 0; k < cell.n; k++) {
+                int i = cell.items[k];
+                if (xs[i] < xMin || xs[i] > xMax || ys[i] < yMin || ys[i] > yMax) {
+                    continue;
+                }
+                if (radius >= 0) {
+                    double dx = xs[i] - cx;
+                    double dy = ys[i] - cy;
+                    if (dx * dx + dy * dy > radius * radius) {
+                        continue;
+                    }
+                }
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, 2 * n);
+                }
+                found[n++] = i;
+            }
+        }
+        found = Arrays.copyOf(found, n);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Cellules recoupant un rectangle (toutes les cellules lorsque le
+     * rectangle en couvre davantage qu'il n'en existe).
+     */
+    private ArrayList<Cell> cellsIn(double xMin, double yMin, double xMax, double yMax) {
+        long c0 = cell(xMin), c1 = cell(xMax);
+        long r0 = cell(yMin), r1 = cell(yMax);
+        if ((c1 - c0 + 1) * (r1 - r0 + 1) > allCells.size()) {
+            return allCells;
+        }
+        ArrayList<Cell> list = new ArrayList<>();
+        for (long r = r0; r <= r1; r++) {
+            for (long c = c0; c <= c1; c++) {
+                Cell cell = cells.get(key(c, r));
+                if (cell != null) {
+                    list.add(cell);
+                }
+            }
+        }
+        return list;
+    }
+
+    private long cell(double v) {
+        return (long) Math.floor(v / cellSize);
+    }
+
+    private static long key(long c, long r) {
+        return ((c + OFFSET) << 32) | (r + OFFSET);
+    }
+
+    private Cell cellAt(double x, double y, boolean create) {
+        long key = key(cell(x), cell(y));
+        Cell cell = cells.get(key);
+        if (cell == null && create) {
+            cell = new Cell();
+            cells.put(key, cell);
+            allCells.add(cell);
+        }
+        return cell;
+    }
+
+    /**
+     * Décaler les indices supérieurs ou égaux à from.
+     */
+    private void shift(int from, int delta) {
+        for (Cell cell : allCells) {
+            for (int k = 0; k < cell.n; k++) {
+                if (cell.items[k] >= from) {
+                    cell.items[k] += delta;
+                }
+            }
+        }
+    }
+}
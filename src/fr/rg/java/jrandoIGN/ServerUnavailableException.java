@@ -0,0 +1,18 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.IOException;
+
+/**
+ * Requête refusée sans être envoyée car le serveur de tuiles est considéré
+ * comme indisponible (disjoncteur ouvert).
+ *
+ * @see CircuitBreaker
+ */
+public class ServerUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerUnavailableException(String message) {
+        super("Serveur indisponible: " + message);
+    }
+}
@@ -0,0 +1,101 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+/**
+ * Thread de faible priorité chargé de borner la taille du cache disque.
+ *
+ * <p>
+ * À intervalle régulier, il supprime les tuiles trop anciennes puis les moins
+ * récemment utilisées lorsque le quota est dépassé, compacte le fichier de
+ * données lorsque la place perdue devient importante et sauvegarde les dates
+ * d'accès.
+ *
+ * <p>
+ * Le quota et l'âge maximal sont lus dans les préférences à chaque passage.
+ *
+ * @see TilePackStore#evict(long, long)
+ */
+public class TileCacheJanitor extends Thread {
+
+    // Préférence: quota du cache disque (en Mo)
+    public static final String KEY_DISK_CACHE_MB = "tile_disk_cache_mb";
+    public static final int DEFAULT_DISK_CACHE_MB = 1024;
+    // Préférence: durée de conservation depuis le dernier accès (en jours, 0:
+    // illimitée)
+    public static final String KEY_DISK_CACHE_DAYS = "tile_disk_cache_days";
+    public static final int DEFAULT_DISK_CACHE_DAYS = 180;
+
+    // Intervalle entre deux passages
+    private static final long PERIOD_MS = 60_000;
+    // Place perdue minimale déclenchant un compactage
+    private static final long MIN_DEAD_BYTES = 16L << 20;
+
+    // Caches déjà surveillés
+    private static final HashSet<TilePackStore> watched = new HashSet<>();
+
+    private final TilePackStore store;
+
+    /**
+     * Démarrer (une seule fois par cache) le thread de nettoyage.
+     *
+     * @param store cache disque à surveiller
+     */
+    public static void start(TilePackStore store) {
+        synchronized (watched) {
+            if (watched.add(store)) {
+                new TileCacheJanitor(store).start();
+            }
+        }
+    }
+
+    private TileCacheJanitor(TilePackStore store) {
+        super("tile-cache-janitor");
+        this.store = store;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    @Override
+    public void run() {
+        Preferences prefs = Preferences.userNodeForPackage(IGNMap.class);
+        while (!isInterrupted()) {
+            try {
+                long quota = prefs.getInt(KEY_DISK_CACHE_MB, DEFAULT_DISK_CACHE_MB) * (1L << 20);
+                long maxAge = prefs.getInt(KEY_DISK_CACHE_DAYS, DEFAULT_DISK_CACHE_DAYS)
+                        * 24L * 3600 * 1000;
+                // Redescendre à 90% du quota pour ne pas nettoyer à chaque passage
+                if (store.getLiveBytes() > quota) {
+                    quota = quota / 10 * 9;
+                }
+                int n = store.evict(quota, maxAge);
+
+                long dead = store.getDeadBytes();
+                if (dead > MIN_DEAD_BYTES && dead > store.getLiveBytes() / 2) {
+                    store.compact();
+                }
+                store.flush();
+                if (n > 0) {
+                    Logger.getLogger(TileCacheJanitor.class.getName()).log(Level.INFO,
+                            "{0} tuiles supprimées du cache disque: {1}",
+                            new Object[]{n, store});
+                }
+
+                Thread.sleep(PERIOD_MS);
+            } catch (InterruptedException ex) {
+                break;
+            } catch (IOException ex) {
+                Logger.getLogger(TileCacheJanitor.class.getName()).log(Level.WARNING, null, ex);
+                try {
+                    Thread.sleep(PERIOD_MS);
+                } catch (InterruptedException ex1) {
+                    break;
+                }
+            }
+        }
+    }
+}
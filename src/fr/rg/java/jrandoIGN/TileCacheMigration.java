@@ -0,0 +1,119 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Outil de migration de l'ancien cache disque (un fichier JPEG par tuile) vers
+ * le fichier unique du TilePackStore.
+ *
+ * <p>
+ * Utilisation:
+ * <pre>
+ * java fr.rg.java.jrandoIGN.TileCacheMigration [--keep] [répertoire]
+ * </pre>
+ * Par défaut, le répertoire est ~/.jrandoIGN/cache et les fichiers migrés sont
+ * supprimés (sauf avec --keep). L'application effectue elle-même cette
+ * migration au démarrage (start).
+ *
+ * @see TilePackStore
+ */
+public class TileCacheMigration {
+
+    /**
+     * Importer toutes les tuiles d'un répertoire dans le cache.
+     *
+     * @param dir répertoire contenant les fichiers JPEG
+     * @param store cache de destination
+     * @param delete supprimer les fichiers importés
+     * @return nombre de tuiles importées
+     * @throws IOException
+     */
+    public static int migrate(File dir, TilePackStore store, boolean delete)
+            throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int n = 0;
+        for (File f : files) {
+            long key = TileKey.parseFileName(f.getName());
+            if (key == TileKey.NONE || !f.isFile()) {
+                continue;
+            }
+            if (!store.contains(key)) {
+                store.put(key, Files.readAllBytes(f.toPath()));
+                n++;
+            }
+            if (delete) {
+                f.delete();
+            }
+        }
+        store.flush();
+        return n;
+    }
+
+    /**
+     * Importer en tâche de fond les fichiers de l'ancien cache restés dans le
+     * répertoire du cache. Les fichiers importés sont supprimés: la migration
+     * n'a lieu qu'une fois.
+     *
+     * @param dir répertoire du cache
+     * @param store cache de destination
+     */
+    public static void start(final File dir, final TilePackStore store) {
+        Thread t = new Thread("tile-cache-migration") {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    int n = migrate(dir, store, true);
+                    if (n > 0) {
+                        Logger.getLogger(TileCacheMigration.class.getName()).log(Level.INFO,
+                                "{0} tuiles de l''ancien cache importées en {1} ms",
+                                new Object[]{n, System.currentTimeMillis() - start});
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(TileCacheMigration.class.getName()).log(Level.WARNING,
+                            null, ex);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Point d'entrée de l'outil.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        boolean delete = true;
+        File dir = new File(System.getProperty("user.home") + File.separator
+                + ".jrandoIGN" + File.separator + "cache");
+        for (String arg : args) {
+            if ("--keep".equals(arg)) {
+                delete = false;
+            } else {
+                dir = new File(arg);
+            }
+        }
+
+        TilePackStore store = TilePackStore.open(dir);
+        long start = System.currentTimeMillis();
+        int n = migrate(dir, store, delete);
+        if (store.getDeadBytes() > 0) {
+            store.compact();
+        }
+        System.out.println(n + " tuiles importées en "
+                + (System.currentTimeMillis() - start) + " ms ("
+                + store.getTileCount() + " tuiles, "
+                + store.getLiveBytes() / 1024 + " Ko dans le cache)");
+    }
+}
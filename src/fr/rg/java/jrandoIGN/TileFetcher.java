@@ -0,0 +1,671 @@
+package fr.rg.java.jrandoIGN;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import javax.imageio.ImageIO;
+
+/**
+ * Moteur de récupération des tuiles WMTS utilisant un nombre borné de
+ * requêtes simultanées.
+ *
+ * <p>
+ * Les tâches sont exécutées dans l'ordre de leur soumission (file FIFO): il
+ * suffit donc de soumettre les tuiles de la plus proche à la plus éloignée du
+ * centre de la carte pour conserver un affichage qui part du centre.
+ *
+ * <p>
+ * Le téléchargement et le décodage sont séparés: les threads de téléchargement
+ * recopient les octets reçus directement dans le cache disque (sans décodage
+ * ni ré-encodage JPEG) puis confient le décodage, unique, à un second groupe
+ * de threads.
+ *
+ * <p>
+ * Les images décodées sont converties, une seule fois et hors de l'Event
+ * Dispatch Thread, au format de l'écran afin que leur affichage ne nécessite
+ * plus de conversion.
+ *
+ * <p>
+ * Les en-têtes HTTP ETag et Last-Modified des tuiles téléchargées sont
+ * conservés dans le cache disque: revalidate() rafraîchit une tuile ancienne
+ * par une requête conditionnelle, à laquelle le serveur répond généralement
+ * 304 (sans données).
+ *
+ * <p>
+ * Les erreurs temporaires (réseau, 5xx, 429) sont retentées avec un délai
+ * exponentiel aléatoire. Un disjoncteur cesse d'interroger le serveur après
+ * plusieurs échecs consécutifs: les requêtes échouent alors immédiatement
+ * (ServerUnavailableException) et seules les tuiles en cache sont affichées.
+ * Un délai Retry-After imposé par le serveur (borné à MAX_RETRY_AFTER_MS)
+ * ouvre le disjoncteur pour sa durée: aucun thread n'attend, les tuiles
+ * manquantes sont redemandées à sa fermeture.
+ *
+ * <p>
+ * Les tuiles proviennent par défaut du service WMTS de l'IGN; une autre
+ * source (TileSource) peut lui être substituée. Les tuiles d'une source
+ * locale sont lues directement, sans passer par le cache disque; celles
+ * d'une source distante bénéficient des nouvelles tentatives, du disjoncteur
+ * et du cache disque (les requêtes conditionnelles étant réservées aux
+ * services WMTS). Si la source choisie ne peut être ouverte, le service de
+ * l'IGN est utilisé et l'erreur est conservée (getSourceError()) pour être
+ * signalée à l'utilisateur.
+ *
+ * <p>
+ * Le moteur mesure le débit (tuiles/s) sur les dernières tuiles récupérées et
+ * permet de connaître la profondeur de la file d'attente.
+ */
+public class TileFetcher {
+
+    // Nombre maximal de requêtes simultanées par défaut
+    public static final int DEFAULT_MAX_REQUESTS = 6;
+    // Nombre de tuiles utilisées pour estimer le débit
+    private static final int THROUGHPUT_WINDOW = 64;
+    // Préférence: source des tuiles (vide pour le service WMTS de l'IGN,
+    // sinon chemin d'une arborescence de tuiles ou d'un fichier .mbtiles)
+    public static final String KEY_TILE_SOURCE = "tile_source";
+    // Nouvelles tentatives: nombre maximal d'essais, délais de base et maximal
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long BACKOFF_MAX_MS = 8_000;
+    // Suspension maximale imposée par le serveur (Retry-After)
+    private static final long MAX_RETRY_AFTER_MS = 120_000;
+
+    // Configuration graphique de l'écran (null si pas d'écran)
+    private static GraphicsConfiguration screenConfig;
+    private static boolean screenConfigKnown = false;
+
+    // Origine des tuiles
+    private volatile TileSource source;
+    // Échec de l'ouverture de la source des préférences (ou null)
+    private final IOException sourceError;
+
+    // Disjoncteur: ouvert après 5 échecs consécutifs pendant 15 s à 2 min
+    private final CircuitBreaker breaker = new CircuitBreaker(5, 15_000, 120_000);
+    // Mesures (publiées par JMX)
+    private final TileMetrics metrics = new TileMetrics(this);
+
+    private final ThreadPoolExecutor executor; // téléchargements
+    private final ThreadPoolExecutor decoder; // décodages
+
+    // Instants (ns) des dernières récupérations (tampon circulaire)
+    private final long[] fetchTimes = new long[THROUGHPUT_WINDOW];
+    private int nFetched = 0;
+
+    /**
+     * Créer le moteur avec un nombre maximal de requêtes simultanées.
+     *
+     * @param maxRequests nombre de threads de téléchargement
+     */
+    public TileFetcher(int maxRequests) {
+        executor = createPool(maxRequests, "tile-fetch-");
+        decoder = createPool(Runtime.getRuntime().availableProcessors(),
+                "tile-decode-");
+        Preferences prefs = Preferences.userNodeForPackage(IGNMap.class);
+        String spec = prefs.get(KEY_TILE_SOURCE, "");
+        IOException error = null;
+        try {
+            source = createSource(spec);
+        } catch (IOException ex) { // Service de l'IGN à la place
+            Logger.getLogger(TileFetcher.class.getName()).log(Level.WARNING,
+                    "Source de tuiles " + spec + " inutilisable", ex);
+            source = new WmtsTileSource();
+            error = ex;
+        }
+        sourceError = error;
+    }
+
+    /**
+     * Créer la source de tuiles désignée par la préférence tile_source.
+     *
+     * @param spec chaîne vide (service WMTS de l'IGN), adresse http(s) d'un
+     * service WMTS compatible, fichier .mbtiles ou répertoire
+     * @return source
+     * @throws IOException si la source locale ne peut être ouverte
+     * (répertoire ou fichier absent, pilote SQLite manquant...)
+     */
+    public static TileSource createSource(String spec) throws IOException {
+        if (spec == null || spec.trim().isEmpty()) {
+            return new WmtsTileSource();
+        }
+        spec = spec.trim();
+        if (spec.startsWith("http://") || spec.startsWith("https://")) {
+            return new WmtsTileSource(spec);
+        }
+        File f = new File(spec);
+        if (f.isDirectory()) {
+            return new DirectoryTileSource(f);
+        }
+        return new MBTilesTileSource(f);
+    }
+
+    /**
+     * Erreur survenue à l'ouverture de la source désignée par la préférence
+     * tile_source (le service WMTS de l'IGN est alors utilisé).
+     *
+     * @return erreur ou null si la source a pu être ouverte
+     */
+    public IOException getSourceError() {
+        return sourceError;
+    }
+
+    /**
+     * Changer l'origine des tuiles (la source précédente n'est pas fermée).
+     *
+     * @param source
+     */
+    public void setSource(TileSource source) {
+        this.source = source;
+    }
+
+    public TileSource getSource() {
+        return source;
+    }
+
+    /**
+     * Utiliser un autre service WMTS que celui de l'IGN (serveur local de
+     * test, miroir...).
+     *
+     * @param url adresse du service (ex: http://localhost:8080/wmts) ou null
+     * pour revenir au service de l'IGN
+     */
+    public void setWmtsUrl(String url) {
+        setSource(new WmtsTileSource(url));
+    }
+
+    private static ThreadPoolExecutor createPool(int nThreads, final String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Créer un lot dont les résultats (tâches de décodage) sont disponibles
+     * dès que chacun se termine.
+     *
+     * @param <T> type du résultat des tâches
+     * @return
+     */
+    public <T> CompletionService<T> newBatch() {
+        return new ExecutorCompletionService<>(decoder);
+    }
+
+    /**
+     * Soumettre la récupération d'une tuile.
+     *
+     * <p>
+     * La tâche fetch s'exécute sur un thread de téléchargement et renvoie la
+     * tâche de décodage, qui est alors soumise au lot. En cas d'erreur de
+     * téléchargement, une tâche renvoyant l'exception est soumise à la place:
+     * chaque tâche fetch exécutée produit donc exactement un résultat dans le
+     * lot.
+     *
+     * @param <T> type du résultat
+     * @param fetch tâche de téléchargement
+     * @param batch lot recevant le résultat
+     * @return tâche de téléchargement (annulable tant qu'elle n'a pas démarré)
+     */
+    public <T> Future<?> submit(final Callable<Callable<T>> fetch,
+            final CompletionService<T> batch) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Callable<T> decode;
+                try {
+                    decode = fetch.call();
+                } catch (final Exception ex) {
+                    decode = new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            throw ex;
+                        }
+                    };
+                }
+                batch.submit(decode);
+            }
+        });
+    }
+
+    /**
+     * Télécharger une tuile sur le serveur WMTS de l'IGN.
+     *
+     * <p>
+     * Les octets reçus sont recopiés tels quels dans le cache disque (s'il est
+     * fourni), directement depuis le flux réseau lorsque la taille de la
+     * réponse est connue.
+     *
+     * @param key clé de la tuile (couche, zoom, ligne, colonne)
+     * @param store cache disque (ou null)
+     * @return données JPEG de la tuile
+     * @throws IOException
+     * @see TileKey
+     */
+    public ByteBuffer download(long key, TilePackStore store) throws IOException {
+        return request(key, store, false);
+    }
+
+    /**
+     * Revalider une tuile du cache disque par une requête conditionnelle
+     * (If-None-Match, If-Modified-Since).
+     *
+     * @param key clé de la tuile
+     * @param store cache disque contenant la tuile
+     * @return nouvelles données JPEG ou null si la tuile n'a pas changé
+     * (réponse 304)
+     * @throws IOException
+     */
+    public ByteBuffer revalidate(long key, TilePackStore store) throws IOException {
+        return request(key, store, true);
+    }
+
+    /**
+     * Envoyer une requête en retentant les erreurs temporaires (source
+     * distante).
+     */
+    private ByteBuffer request(long key, TilePackStore store, boolean conditional)
+            throws IOException {
+        TileSource src = source;
+        if (!src.isRemote()) { // Source locale
+            return conditional ? null : readLocal(src, key);
+        }
+        // (requêtes conditionnelles réservées aux services WMTS)
+        WmtsTileSource wmts = src instanceof WmtsTileSource ? (WmtsTileSource) src : null;
+        IOException last = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) { // Délai exponentiel aléatoire ("full jitter")
+                    metrics.retried();
+                    long delay = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << attempt);
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(delay + 1));
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException(TileKey.toString(key));
+            }
+            if (!breaker.allowRequest()) {
+                throw new ServerUnavailableException(TileKey.toString(key));
+            }
+
+            boolean answered = false, suspended = false;
+            try {
+                ByteBuffer data = wmts != null
+                        ? requestOnce(wmts, key, store, conditional)
+                        : readRemote(src, key, store);
+                answered = true;
+                return data;
+            } catch (HttpStatusException ex) {
+                if (!ex.isRetryable()) { // Le serveur a répondu (404, 403...)
+                    answered = true;
+                    metrics.failed();
+                    throw ex;
+                }
+                if (ex.retryAfter > 0) { // Limitation de débit du serveur
+                    suspended = true;
+                    breaker.suspend(Math.min(ex.retryAfter, MAX_RETRY_AFTER_MS));
+                    metrics.failed();
+                    throw new ServerUnavailableException(TileKey.toString(key)
+                            + " (Retry-After " + ex.retryAfter / 1000 + " s)");
+                }
+                last = ex;
+            } catch (FileNotFoundException ex) { // Tuile absente de la source
+                answered = true;
+                metrics.failed();
+                throw ex;
+            } catch (IOException ex) { // Erreur réseau (ou délai dépassé)
+                last = ex;
+            } finally {
+                if (answered) {
+                    breaker.onSuccess();
+                } else if (!suspended) {
+                    breaker.onFailure();
+                }
+            }
+        }
+        metrics.failed();
+        throw last;
+    }
+
+    /**
+     * Lire une tuile d'une source locale (sans cache disque, nouvelle
+     * tentative ni disjoncteur).
+     */
+    private ByteBuffer readLocal(TileSource src, long key) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer data = src.getTile(key);
+        if (data == null) {
+            metrics.failed();
+            throw new FileNotFoundException(TileKey.toString(key) + " absente de "
+                    + src.getName());
+        }
+        metrics.downloaded(System.nanoTime() - start, data.remaining());
+        return data;
+    }
+
+    /**
+     * Lire une tuile d'une source distante autre qu'un service WMTS (un seul
+     * essai) et la conserver dans le cache disque.
+     */
+    private ByteBuffer readRemote(TileSource src, long key, TilePackStore store)
+            throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer data = src.getTile(key);
+        if (data == null) {
+            throw new FileNotFoundException(TileKey.toString(key) + " absente de "
+                    + src.getName());
+        }
+        metrics.downloaded(System.nanoTime() - start, data.remaining());
+        storeTile(store, key, data);
+        return data;
+    }
+
+    /**
+     * Conserver une tuile reçue dans le cache disque. Une erreur d'écriture
+     * (disque plein, cache fermé ou compacté) est signalée mais la tuile est
+     * tout de même affichée: le serveur a répondu, il ne faut ni la
+     * télécharger de nouveau ni en tenir compte dans le disjoncteur.
+     *
+     * @return true si la tuile a été écrite dans le cache
+     */
+    private static boolean storeTile(TilePackStore store, long key, ByteBuffer data) {
+        if (store == null) {
+            return false;
+        }
+        try {
+            store.put(key, data.duplicate());
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(TileFetcher.class.getName()).log(Level.WARNING,
+                    "Tuile " + TileKey.toString(key) + " non conservée dans le cache disque", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Envoyer une requête (un seul essai).
+     */
+    private ByteBuffer requestOnce(WmtsTileSource wmts, long key, TilePackStore store,
+            boolean conditional) throws IOException {
+        HttpURLConnection connection = wmts.openConnection(key);
+        URL url = connection.getURL();
+        if (conditional && store != null) { // Requête conditionnelle
+            String etag = store.getETag(key);
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            long lastModified = store.getLastModified(key);
+            if (lastModified > 0) {
+                connection.setIfModifiedSince(lastModified);
+            }
+        }
+
+        long start = System.nanoTime();
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            connection.getInputStream().close();
+            metrics.notModified(System.nanoTime() - start);
+            if (store != null) {
+                store.markRevalidated(key);
+            }
+            return null;
+        }
+        if (code >= 400) {
+            InputStream err = connection.getErrorStream();
+            if (err != null) {
+                err.close();
+            }
+            throw new HttpStatusException(code, parseRetryAfter(connection), url);
+        }
+        try (InputStream in = connection.getInputStream()) {
+            String type = connection.getContentType();
+            if (type == null || !type.startsWith("image/")) { // Erreur du serveur
+                throw new HttpStatusException(code, 0, url);
+            }
+            // Réponse lue en entier avant l'écriture dans le cache: une erreur
+            // du cache disque n'est pas une erreur réseau
+            ByteBuffer data = ByteBuffer.wrap(in.readAllBytes());
+            metrics.downloaded(System.nanoTime() - start, data.remaining());
+            if (storeTile(store, key, data)) { // Mémoriser les en-têtes de validation
+                store.setMetadata(key, connection.getHeaderField("ETag"),
+                        connection.getLastModified());
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Délai imposé par l'en-tête Retry-After (en secondes ou date HTTP).
+     *
+     * @return délai en ms (0 si absent)
+     */
+    private static long parseRetryAfter(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ex) {
+            long date = connection.getHeaderFieldDate("Retry-After", 0);
+            return Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Indiquer si le serveur est considéré comme disponible (disjoncteur
+     * fermé ou en essai).
+     *
+     * @return
+     */
+    public boolean isServerAvailable() {
+        return !source.isRemote() || !breaker.isOpen();
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Mesures de la chaîne de récupération des tuiles.
+     *
+     * @return
+     */
+    public TileMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Décoder les données d'une tuile.
+     *
+     * @param data données JPEG
+     * @return image de la tuile
+     * @throws IOException
+     */
+    public static BufferedImage decode(ByteBuffer data) throws IOException {
+        BufferedImage img = ImageIO.read(TilePackStore.asStream(data.duplicate()));
+        if (img == null) {
+            throw new IOException("Tuile illisible");
+        }
+        return img;
+    }
+
+    /**
+     * Convertir une image au format de l'écran (si elle ne l'est pas déjà)
+     * pour éviter toute conversion lors de son affichage.
+     *
+     * @param img image décodée
+     * @return image compatible avec l'écran (TYPE_INT_RGB sans écran)
+     */
+    public static BufferedImage toCompatible(BufferedImage img) {
+        GraphicsConfiguration gc = getScreenConfig();
+        BufferedImage compatible;
+        if (gc == null) { // Pas d'écran (impression, export)
+            if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+                return img;
+            }
+            compatible = new BufferedImage(img.getWidth(), img.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+        } else if (img.getColorModel().equals(gc.getColorModel())) {
+            return img;
+        } else {
+            compatible = gc.createCompatibleImage(img.getWidth(), img.getHeight(),
+                    img.getTransparency() == Transparency.OPAQUE
+                    ? Transparency.OPAQUE : Transparency.TRANSLUCENT);
+        }
+        Graphics2D g = compatible.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return compatible;
+    }
+
+    /**
+     * Superposer une image semi-transparente à une autre (carte sur vue
+     * aérienne).
+     *
+     * @param under image du dessous
+     * @param over image du dessus (redimensionnée si nécessaire)
+     * @param opacity opacité de l'image du dessus (entre 0 et 1)
+     * @return nouvelle image, au format de l'écran
+     */
+    public static BufferedImage blend(Image under, Image over, float opacity) {
+        int w = under.getWidth(null);
+        int h = under.getHeight(null);
+        GraphicsConfiguration gc = getScreenConfig();
+        BufferedImage img = gc == null
+                ? new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB)
+                : gc.createCompatibleImage(w, h);
+        Graphics2D g = img.createGraphics();
+        g.drawImage(under, 0, 0, null);
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+        g.drawImage(over, 0, 0, w, h, null);
+        g.dispose();
+        return img;
+    }
+
+    /**
+     * Configuration graphique de l'écran principal.
+     *
+     * @return null en l'absence d'écran
+     */
+    static synchronized GraphicsConfiguration getScreenConfig() {
+        if (!screenConfigKnown) {
+            screenConfigKnown = true;
+            if (!GraphicsEnvironment.isHeadless()) {
+                screenConfig = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                        .getDefaultScreenDevice().getDefaultConfiguration();
+            }
+        }
+        return screenConfig;
+    }
+
+    /**
+     * Signaler qu'une tuile vient d'être récupérée (pour le calcul du débit).
+     */
+    public synchronized void tileFetched() {
+        fetchTimes[nFetched % THROUGHPUT_WINDOW] = System.nanoTime();
+        nFetched++;
+    }
+
+    /**
+     * Débit de récupération estimé sur les dernières tuiles.
+     *
+     * @return nombre de tuiles par seconde (0 si inconnu)
+     */
+    public synchronized double getThroughput() {
+        int n = Math.min(nFetched, THROUGHPUT_WINDOW);
+        if (n < 2) {
+            return 0;
+        }
+        long last = fetchTimes[(nFetched - 1) % THROUGHPUT_WINDOW];
+        long first = fetchTimes[(nFetched - n) % THROUGHPUT_WINDOW];
+        if (last == first) {
+            return 0;
+        }
+        return (n - 1) * 1e9 / (last - first);
+    }
+
+    /**
+     * Nombre total de tuiles récupérées.
+     *
+     * @return
+     */
+    public synchronized int getFetchedCount() {
+        return nFetched;
+    }
+
+    /**
+     * Nombre de tâches en attente d'un thread de téléchargement ou de
+     * décodage.
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size() + decoder.getQueue().size();
+    }
+
+    /**
+     * Nombre de requêtes actuellement en cours.
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Réponse HTTP en erreur (ou d'un type inattendu).
+     */
+    private static final class HttpStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        final int code;
+        final long retryAfter; // ms
+
+        HttpStatusException(int code, long retryAfter, URL url) {
+            super("Réponse " + code + ": " + url);
+            this.code = code;
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * Erreur temporaire (surcharge, limitation de débit, erreur du
+         * serveur).
+         */
+        boolean isRetryable() {
+            return code == 429 || code >= 500;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package fr.rg.java.jrandoIGN;
+
+/**
+ * Identifiant d'une tuile compacté dans un entier long.
+ *
+ * <p>
+ * Répartition des bits (du poids fort au poids faible):
+ * <ul>
+ * <li>bit 63: toujours nul (les clés sont positives).</li>
+ * <li>bits 59-62: couche (carte IGN, vue aérienne...).</li>
+ * <li>bits 54-58: niveau de zoom.</li>
+ * <li>bits 27-53: indice de ligne.</li>
+ * <li>bits 0-26: indice de colonne.</li>
+ * </ul>
+ *
+ * <p>
+ * Le nom de fichier du cache disque est dérivé de la même clé et reste
+ * compatible avec l'ancien nommage ("ortho-z15-r123-c456.jpg").
+ */
+public final class TileKey {
+
+    // Couches disponibles
+    public static final int LAYER_MAPS = 0; // Carte IGN 1:25000
+    public static final int LAYER_ORTHO = 1; // Vue aérienne
+    // Carte semi-transparente sur la vue aérienne (composée localement à
+    // partir des deux couches précédentes, jamais téléchargée ni stockée sur
+    // le disque)
+    public static final int LAYER_BLEND = 2;
+
+    // Valeur jamais utilisée par une clé valide
+    public static final long NONE = -1L;
+
+    private static final int COL_BITS = 27;
+    private static final int ROW_BITS = 27;
+    private static final int ZOOM_BITS = 5;
+    private static final int LAYER_BITS = 4;
+    private static final int ROW_SHIFT = COL_BITS;
+    private static final int ZOOM_SHIFT = ROW_SHIFT + ROW_BITS;
+    private static final int LAYER_SHIFT = ZOOM_SHIFT + ZOOM_BITS;
+    private static final long COL_MASK = (1L << COL_BITS) - 1;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+    private static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+    private static final long LAYER_MASK = (1L << LAYER_BITS) - 1;
+
+    private TileKey() {
+    }
+
+    /**
+     * Construire la clé d'une tuile.
+     *
+     * @param layer couche
+     * @param zoom niveau de zoom
+     * @param row indice de ligne
+     * @param col indice de colonne
+     * @return
+     */
+    public static long of(int layer, int zoom, int row, int col) {
+        return ((layer & LAYER_MASK) << LAYER_SHIFT)
+                | ((zoom & ZOOM_MASK) << ZOOM_SHIFT)
+                | ((row & ROW_MASK) << ROW_SHIFT)
+                | (col & COL_MASK);
+    }
+
+    public static int layer(long key) {
+        return (int) ((key >>> LAYER_SHIFT) & LAYER_MASK);
+    }
+
+    public static int zoom(long key) {
+        return (int) ((key >>> ZOOM_SHIFT) & ZOOM_MASK);
+    }
+
+    public static int row(long key) {
+        return (int) ((key >>> ROW_SHIFT) & ROW_MASK);
+    }
+
+    public static int col(long key) {
+        return (int) (key & COL_MASK);
+    }
+
+    /**
+     * Nom du fichier de la tuile dans le cache disque.
+     *
+     * @param key
+     * @return
+     */
+    public static String toFileName(long key) {
+        return toString(key) + ".jpg";
+    }
+
+    /**
+     * Retrouver la clé d'une tuile à partir d'un nom de fichier du cache
+     * disque.
+     *
+     * @param name nom du fichier ("ortho-z15-r123-c456.jpg" ou
+     * "z15-r123-c456.jpg")
+     * @return la clé ou NONE si le nom n'est pas reconnu
+     */
+    public static long parseFileName(String name) {
+        if (!name.endsWith(".jpg")) {
+            return NONE;
+        }
+        String[] desc = name.substring(0, name.length() - 4).split("-");
+        int i = 0;
+        int layer = LAYER_MAPS;
+        if (desc.length == 4 && "ortho".equals(desc[0])) { // Vue aérienne
+            layer = LAYER_ORTHO;
+            i = 1;
+        } else if (desc.length != 3) {
+            return NONE;
+        }
+        try {
+            if (desc[i].charAt(0) != 'z' || desc[i + 1].charAt(0) != 'r'
+                    || desc[i + 2].charAt(0) != 'c') {
+                return NONE;
+            }
+            return of(layer, Integer.parseInt(desc[i].substring(1)),
+                    Integer.parseInt(desc[i + 1].substring(1)),
+                    Integer.parseInt(desc[i + 2].substring(1)));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Représentation textuelle ("ortho-z15-r123-c456" ou "z15-r123-c456").
+     *
+     * @param key
+     * @return
+     */
+    public static String toString(long key) {
+        int layer = layer(key);
+        return (layer == LAYER_ORTHO ? "ortho-" : layer == LAYER_BLEND ? "blend-" : "")
+                + "z" + zoom(key) + "-r" + row(key) + "-c" + col(key);
+    }
+}
@@ -0,0 +1,272 @@
+package fr.rg.java.jrandoIGN;
+
+import javax.swing.ImageIcon;
+
+/**
+ * Cache mémoire des tuiles décodées, borné par un budget en octets.
+ *
+ * <p>
+ * Chaque image compte pour largeur*hauteur*4 octets (ARGB). Lorsque le budget
+ * est dépassé, les tuiles les moins récemment utilisées (LRU) sont évincées:
+ * les tuiles des zones et niveaux de zoom visités récemment restent donc
+ * disponibles pour un retour en arrière.
+ *
+ * <p>
+ * Les tuiles sont indexées par leur clé compacte (voir TileKey) dans une table
+ * à clés primitives; l'ordre LRU est maintenu par une liste doublement
+ * chaînée intrusive, si bien qu'une recherche n'alloue aucun objet.
+ *
+ * <p>
+ * Les méthodes sont synchronisées car le cache est lu depuis l'Event Dispatch
+ * Thread et rempli depuis les threads de téléchargement.
+ */
+public class TileMemoryCache {
+
+    // Préférence: budget du cache (en Mo)
+    public static final String KEY_MEMORY_CACHE_MB = "tile_memory_cache_mb";
+    public static final int DEFAULT_MEMORY_CACHE_MB = 128;
+
+    // Tuiles indexées par leur clé
+    private final LongTileMap<Node> tiles = new LongTileMap<>(256);
+    // Liste LRU: de la moins (head) à la plus (tail) récemment utilisée
+    private Node head, tail;
+    private long budget; // en octets
+    private long size = 0; // en octets
+
+    // Statistiques
+    private long hits, misses, evictions;
+
+    /**
+     * Créer un cache avec un budget donné.
+     *
+     * @param budget taille maximale en octets
+     */
+    public TileMemoryCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Taille occupée par une image en mémoire.
+     *
+     * @param img
+     * @return nombre d'octets
+     */
+    private static long weight(ImageIcon img) {
+        return 4L * img.getIconWidth() * img.getIconHeight();
+    }
+
+    /**
+     * Élément de la liste LRU.
+     */
+    private static final class Node {
+
+        final long key;
+        ImageIcon img;
+        Node prev, next;
+
+        Node(long key, ImageIcon img) {
+            this.key = key;
+            this.img = img;
+        }
+    }
+
+    private void unlink(Node n) {
+        if (n.prev == null) {
+            head = n.next;
+        } else {
+            n.prev.next = n.next;
+        }
+        if (n.next == null) {
+            tail = n.prev;
+        } else {
+            n.next.prev = n.prev;
+        }
+        n.prev = null;
+        n.next = null;
+    }
+
+    private void append(Node n) {
+        n.prev = tail;
+        if (tail == null) {
+            head = n;
+        } else {
+            tail.next = n;
+        }
+        tail = n;
+    }
+
+    /**
+     * Marquer un élément comme le plus récemment utilisé.
+     */
+    private void touch(Node n) {
+        if (n != tail) {
+            unlink(n);
+            append(n);
+        }
+    }
+
+    /**
+     * Récupérer une tuile et mettre à jour les statistiques.
+     *
+     * @param key clé de la tuile
+     * @return la tuile ou null si absente
+     */
+    public synchronized ImageIcon get(long key) {
+        Node n = tiles.get(key);
+        if (n == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        touch(n);
+        return n.img;
+    }
+
+    /**
+     * Récupérer une tuile sans modifier les statistiques (utilisé pour le
+     * dessin de la carte).
+     *
+     * @param key clé de la tuile
+     * @return la tuile ou null si absente
+     */
+    public synchronized ImageIcon peek(long key) {
+        Node n = tiles.get(key);
+        if (n == null) {
+            return null;
+        }
+        touch(n);
+        return n.img;
+    }
+
+    /**
+     * Indiquer si une tuile est présente (sans modifier l'ordre LRU ni les
+     * statistiques).
+     *
+     * @param key clé de la tuile
+     * @return
+     */
+    public synchronized boolean contains(long key) {
+        return tiles.containsKey(key);
+    }
+
+    /**
+     * Ajouter (ou remplacer) une tuile puis évincer les plus anciennes si le
+     * budget est dépassé.
+     *
+     * @param key clé de la tuile
+     * @param img image décodée
+     */
+    public synchronized void put(long key, ImageIcon img) {
+        Node n = tiles.get(key);
+        if (n != null) {
+            size -= weight(n.img);
+            n.img = img;
+            touch(n);
+        } else {
+            n = new Node(key, img);
+            tiles.put(key, n);
+            append(n);
+        }
+        size += weight(img);
+        trim();
+    }
+
+    /**
+     * Retirer une tuile du cache.
+     *
+     * @param key clé de la tuile
+     */
+    public synchronized void remove(long key) {
+        Node n = tiles.remove(key);
+        if (n != null) {
+            unlink(n);
+            size -= weight(n.img);
+        }
+    }
+
+    /**
+     * Retirer toutes les tuiles d'une couche.
+     *
+     * @param layer couche (voir TileKey)
+     */
+    public synchronized void removeLayer(int layer) {
+        for (long key : tiles.keys()) {
+            if (TileKey.layer(key) == layer) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * Modifier le budget du cache.
+     *
+     * @param budget taille maximale en octets
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    /**
+     * Évincer les tuiles les moins récemment utilisées jusqu'à respecter le
+     * budget (la dernière tuile insérée est toujours conservée).
+     */
+    private void trim() {
+        while (size > budget && head != tail) {
+            Node n = head;
+            unlink(n);
+            tiles.remove(n.key);
+            size -= weight(n.img);
+            evictions++;
+        }
+    }
+
+    /**
+     * Vider le cache.
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        head = null;
+        tail = null;
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Remettre les statistiques à zéro.
+     */
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d tuiles, %d/%d Ko, succès=%d, échecs=%d, évictions=%d",
+                tiles.size(), size / 1024, budget / 1024, hits, misses, evictions);
+    }
+}
@@ -0,0 +1,367 @@
+package fr.rg.java.jrandoIGN;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Mesures de la chaîne de récupération des tuiles: caches mémoire et disque,
+ * téléchargements, décodage, affichage et files d'attente.
+ *
+ * <p>
+ * Les mesures sont consultables depuis JConsole ou JMC sous le nom
+ * fr.rg.java.jrandoIGN:type=TileMetrics (voir register()) et remises à zéro
+ * par l'opération reset() entre deux campagnes de mesure.
+ *
+ * <p>
+ * Les compteurs sont mis à jour sans verrou depuis les threads de
+ * téléchargement, de décodage et l'Event Dispatch Thread.
+ */
+public class TileMetrics implements TileMetricsMBean {
+
+    public static final String OBJECT_NAME = "fr.rg.java.jrandoIGN:type=TileMetrics";
+    // Bornes des cases des histogrammes (ms)
+    private static final long[] BUCKETS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private final TileFetcher fetcher;
+    // Éléments de la chaîne connus une fois le service de tuiles créé
+    private volatile TileMemoryCache memoryCache;
+    private volatile TilePackStore store;
+    private volatile TileService service;
+
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong cancellations = new AtomicLong();
+    private final AtomicLong rescores = new AtomicLong();
+    private final Histogram downloadLatency = new Histogram();
+    private final Histogram decodeTime = new Histogram();
+    private final Histogram paintTime = new Histogram();
+
+    /**
+     * Créer les mesures d'un moteur de téléchargement.
+     *
+     * @param fetcher
+     */
+    TileMetrics(TileFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Associer les caches et le service de tuiles aux mesures.
+     *
+     * @param service service de tuiles
+     * @param memoryCache cache mémoire
+     * @param store cache disque (ou null)
+     */
+    void attach(TileService service, TileMemoryCache memoryCache, TilePackStore store) {
+        this.service = service;
+        this.memoryCache = memoryCache;
+        this.store = store;
+    }
+
+    /**
+     * Publier les mesures auprès du serveur JMX de la plateforme.
+     */
+    void register() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mbs.isRegistered(name)) {
+                mbs.registerMBean(this, name);
+            }
+        } catch (JMException ex) {
+            Logger.getLogger(TileMetrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    // +----------------------+
+    // | Enregistrement       |
+    // +----------------------+
+    void downloaded(long nanos, long length) {
+        downloads.incrementAndGet();
+        bytes.addAndGet(length);
+        downloadLatency.record(nanos);
+    }
+
+    void notModified(long nanos) {
+        notModified.incrementAndGet();
+        downloadLatency.record(nanos);
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    void decoded(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    void painted(long nanos) {
+        paintTime.record(nanos);
+    }
+
+    void cancelled() {
+        cancellations.incrementAndGet();
+    }
+
+    void rescored() {
+        rescores.incrementAndGet();
+    }
+
+    // +----------------------+
+    // | Cache mémoire        |
+    // +----------------------+
+    @Override
+    public long getMemoryHits() {
+        return memoryCache == null ? 0 : memoryCache.getHits();
+    }
+
+    @Override
+    public long getMemoryMisses() {
+        return memoryCache == null ? 0 : memoryCache.getMisses();
+    }
+
+    @Override
+    public long getMemoryEvictions() {
+        return memoryCache == null ? 0 : memoryCache.getEvictions();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return memoryCache == null ? 0 : memoryCache.getSize();
+    }
+
+    // +----------------------+
+    // | Cache disque         |
+    // +----------------------+
+    @Override
+    public long getDiskHits() {
+        return store == null ? 0 : store.getHits();
+    }
+
+    @Override
+    public long getDiskMisses() {
+        return store == null ? 0 : store.getMisses();
+    }
+
+    @Override
+    public long getDiskBytes() {
+        return store == null ? 0 : store.getLiveBytes();
+    }
+
+    // +----------------------+
+    // | Réseau               |
+    // +----------------------+
+    @Override
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    @Override
+    public long getNotModified() {
+        return notModified.get();
+    }
+
+    @Override
+    public long getDownloadFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getBytesTransferred() {
+        return bytes.get();
+    }
+
+    @Override
+    public double getThroughput() {
+        return fetcher.getThroughput();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return fetcher.getCircuitBreaker().toString();
+    }
+
+    @Override
+    public double getMeanDownloadLatencyMs() {
+        return downloadLatency.meanMs();
+    }
+
+    @Override
+    public long getMaxDownloadLatencyMs() {
+        return downloadLatency.maxMs();
+    }
+
+    @Override
+    public long[] getDownloadLatencyHistogram() {
+        return downloadLatency.counts();
+    }
+
+    // +----------------------+
+    // | Décodage, affichage  |
+    // +----------------------+
+    @Override
+    public long getDecodes() {
+        return decodeTime.count.get();
+    }
+
+    @Override
+    public double getMeanDecodeTimeMs() {
+        return decodeTime.meanMs();
+    }
+
+    @Override
+    public long getMaxDecodeTimeMs() {
+        return decodeTime.maxMs();
+    }
+
+    @Override
+    public long[] getDecodeTimeHistogram() {
+        return decodeTime.counts();
+    }
+
+    @Override
+    public long getPaints() {
+        return paintTime.count.get();
+    }
+
+    @Override
+    public double getMeanPaintTimeMs() {
+        return paintTime.meanMs();
+    }
+
+    @Override
+    public long getMaxPaintTimeMs() {
+        return paintTime.maxMs();
+    }
+
+    // +----------------------+
+    // | Files d'attente      |
+    // +----------------------+
+    @Override
+    public int getQueueDepth() {
+        return fetcher.getQueueDepth();
+    }
+
+    @Override
+    public int getActiveDownloads() {
+        return fetcher.getActiveCount();
+    }
+
+    @Override
+    public int getPendingTiles() {
+        return service == null ? 0 : service.getPendingCount();
+    }
+
+    @Override
+    public long getCancellations() {
+        return cancellations.get();
+    }
+
+    @Override
+    public long getRescores() {
+        return rescores.get();
+    }
+
+    @Override
+    public long[] getLatencyBucketsMs() {
+        return BUCKETS_MS.clone();
+    }
+
+    @Override
+    public void reset() {
+        downloads.set(0);
+        notModified.set(0);
+        failures.set(0);
+        retries.set(0);
+        bytes.set(0);
+        cancellations.set(0);
+        rescores.set(0);
+        downloadLatency.reset();
+        decodeTime.reset();
+        paintTime.reset();
+        if (memoryCache != null) {
+            memoryCache.resetStats();
+        }
+        if (store != null) {
+            store.resetStats();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("téléchargements=%d (%.0f ms), 304=%d, échecs=%d, "
+                + "décodages=%d (%.1f ms), affichage=%.1f ms",
+                downloads.get(), downloadLatency.meanMs(), notModified.get(),
+                failures.get(), decodeTime.count.get(), decodeTime.meanMs(),
+                paintTime.meanMs());
+    }
+
+    /**
+     * Histogramme de durées (compteurs atomiques).
+     */
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long ms = nanos / 1_000_000;
+            int i = 0;
+            while (i < BUCKETS_MS.length && ms >= BUCKETS_MS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+            }
+        }
+
+        double meanMs() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        long maxMs() {
+            return maxNanos.get() / 1_000_000;
+        }
+
+        long[] counts() {
+            long[] c = new long[buckets.length()];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = buckets.get(i);
+            }
+            return c;
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package fr.rg.java.jrandoIGN;
+
+/**
+ * Interface JMX des mesures de la chaîne de récupération des tuiles (voir
+ * TileMetrics).
+ *
+ * <p>
+ * Les durées sont exprimées en millisecondes. Les histogrammes comptent les
+ * valeurs inférieures à chacune des bornes de getLatencyBucketsMs(), la
+ * dernière case regroupant les valeurs supérieures.
+ */
+public interface TileMetricsMBean {
+
+    // Cache mémoire
+    long getMemoryHits();
+
+    long getMemoryMisses();
+
+    long getMemoryEvictions();
+
+    long getMemoryBytes();
+
+    // Cache disque
+    long getDiskHits();
+
+    long getDiskMisses();
+
+    long getDiskBytes();
+
+    // Réseau
+    long getDownloads();
+
+    long getNotModified();
+
+    long getDownloadFailures();
+
+    long getRetries();
+
+    long getBytesTransferred();
+
+    double getThroughput();
+
+    String getCircuitBreakerState();
+
+    double getMeanDownloadLatencyMs();
+
+    long getMaxDownloadLatencyMs();
+
+    long[] getDownloadLatencyHistogram();
+
+    // Décodage
+    long getDecodes();
+
+    double getMeanDecodeTimeMs();
+
+    long getMaxDecodeTimeMs();
+
+    long[] getDecodeTimeHistogram();
+
+    // Affichage
+    long getPaints();
+
+    double getMeanPaintTimeMs();
+
+    long getMaxPaintTimeMs();
+
+    // Files d'attente
+    int getQueueDepth();
+
+    int getActiveDownloads();
+
+    int getPendingTiles();
+
+    long getCancellations();
+
+    long getRescores();
+
+    long[] getLatencyBucketsMs();
+
+    /**
+     * Remettre à zéro toutes les mesures (y compris les statistiques des
+     * caches).
+     */
+    void reset();
+}
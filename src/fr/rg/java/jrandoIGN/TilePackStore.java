@@ -0,0 +1,1120 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache disque des tuiles regroupées dans un unique fichier de données.
+ *
+ * <p>
+ * Le répertoire du cache contient deux fichiers d'une même génération:
+ * <ul>
+ * <li>tiles.&lt;n&gt;.pack: fichier de données dans lequel les tuiles sont
+ * uniquement ajoutées (enregistrement = clé, longueur, octets JPEG).</li>
+ * <li>tiles.&lt;n&gt;.idx: journal de l'index (enregistrement = clé, position,
+ * longueur; une longueur négative marque une suppression).</li>
+ * <li>tiles.&lt;n&gt;.lru: dates de dernier accès aux tuiles, réécrites à
+ * chaque flush() (sous un nom temporaire puis renommé).</li>
+ * <li>tiles.&lt;n&gt;.meta: métadonnées HTTP des tuiles (date de
+ * récupération, Last-Modified, ETag), réécrites de la même façon par flush()
+ * lorsqu'elles ont changé.</li>
+ * </ul>
+ *
+ * <p>
+ * L'index est rechargé en mémoire dans une table de hachage à l'ouverture. Les
+ * tuiles sont lues à travers des MappedByteBuffer (segments de 256 Mo), ce qui
+ * évite un appel système par tuile. Le compactage réécrit les tuiles encore
+ * présentes dans la génération suivante puis supprime l'ancienne.
+ *
+ * <p>
+ * La nouvelle génération est écrite sous des noms temporaires (suffixe .tmp)
+ * puis renommée, le fichier d'index en dernier: ce renommage atomique valide
+ * la génération. Après un arrêt brutal pendant un compactage, l'ouverture
+ * retrouve donc la dernière génération complète et supprime l'autre.
+ *
+ * <p>
+ * La taille du cache est bornée par evict() qui supprime les tuiles les moins
+ * récemment utilisées (voir TileCacheJanitor).
+ *
+ * <p>
+ * Une seule instance est créée par répertoire (voir open()). Le fichier
+ * tiles.lock du répertoire est verrouillé tant que l'application est
+ * ouverte: une autre application (outil en ligne de commande lancé pendant
+ * que la carte est affichée...) ne peut ouvrir le même cache, ce qui
+ * entremêlerait les ajouts des deux applications.
+ */
+public class TilePackStore {
+
+    // Taille d'un segment projeté en mémoire
+    private static final int SEGMENT_BITS = 28;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    // En-tête d'un enregistrement de données: clé + longueur
+    private static final int DATA_HEADER = 8 + 4;
+    // Enregistrement d'index: clé + position + longueur
+    private static final int INDEX_RECORD = 8 + 8 + 4;
+    // Enregistrement de date d'accès: clé + date
+    private static final int ACCESS_RECORD = 8 + 8;
+    // En-tête d'un enregistrement de métadonnées: clé + date de récupération +
+    // Last-Modified + longueur de l'ETag (suivi de l'ETag en UTF-8)
+    private static final int META_HEADER = 8 + 8 + 8 + 2;
+
+    // Compactage: nombre maximal de passes de recopie sans verrou et nombre
+    // maximal de tuiles recopiées verrou pris (sauf à la dernière passe)
+    private static final int MAX_COMPACT_PASSES = 4;
+    private static final int MAX_LOCKED_COPIES = 256;
+    // Suffixe des fichiers d'une génération en cours d'écriture
+    private static final String TMP = ".tmp";
+    // Fichier verrouillé par l'application qui utilise le cache
+    private static final String LOCK_FILE = "tiles.lock";
+
+    // Instances ouvertes (une par répertoire)
+    private static final HashMap<String, TilePackStore> stores = new HashMap<>();
+
+    // Verrou réservé au compactage (distinct de celui du cache)
+    private final Object compactLock = new Object();
+
+    private final File dir;
+    // Verrou du répertoire (conservé jusqu'à la fin de l'application)
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private int generation;
+    private FileChannel data, idx;
+    private volatile long dataEnd; // position d'ajout (réservée) dans le fichier de données
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+
+    // Index: clé de tuile -> position dans le fichier de données
+    private final LongTileMap<Entry> index = new LongTileMap<>(1024);
+    private volatile int tileCount = 0; // nombre de tuiles présentes
+    private volatile long liveBytes = 0; // octets occupés par les tuiles présentes
+    private boolean metaDirty = false; // métadonnées à sauvegarder
+
+    // Statistiques (modifiées sous le verrou du cache, lisibles sans lui:
+    // l'affichage des statistiques depuis l'Event Dispatch Thread ne doit pas
+    // attendre la fin d'une écriture)
+    private volatile long hits, misses, evictions, expirations;
+
+    /**
+     * Entrée de l'index.
+     */
+    static final class Entry {
+
+        long offset; // position de l'enregistrement de données
+        int length; // taille des données de la tuile
+        long lastAccess; // date du dernier accès (ms)
+        long fetchTime; // date de récupération ou de revalidation (ms)
+        long lastModified; // en-tête HTTP Last-Modified (ms, 0: inconnu)
+        String etag; // en-tête HTTP ETag (ou null)
+
+        Entry(long offset, int length, long lastAccess) {
+            this.offset = offset;
+            this.length = length;
+            this.lastAccess = lastAccess;
+            this.fetchTime = lastAccess;
+        }
+    }
+
+    /**
+     * Ouvrir (ou créer) le cache d'un répertoire.
+     *
+     * @param dir répertoire du cache
+     * @return instance partagée pour ce répertoire
+     * @throws IOException en particulier si le cache est déjà utilisé par
+     * une autre application
+     */
+    public static TilePackStore open(File dir) throws IOException {
+        String path = dir.getCanonicalPath();
+        synchronized (stores) {
+            TilePackStore store = stores.get(path);
+            if (store == null) {
+                store = new TilePackStore(dir);
+                stores.put(path, store);
+            }
+            return store;
+        }
+    }
+
+    private TilePackStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        // Réserver le répertoire à cette application
+        lockChannel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock l;
+        try {
+            l = lockChannel.tryLock();
+        } catch (OverlappingFileLockException ex) { // (déjà pris par ce processus)
+            l = null;
+        } catch (IOException ex) {
+            lockChannel.close();
+            throw ex;
+        }
+        if (l == null) {
+            lockChannel.close();
+            throw new IOException("Cache de tuiles " + dir
+                    + " déjà utilisé par une autre application");
+        }
+        lock = l;
+
+        try {
+            // Identifier la génération validée la plus récente et supprimer
+            // les autres (ainsi que les fichiers d'un compactage interrompu)
+            generation = 0;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().startsWith("tiles.") && f.getName().endsWith(TMP)) {
+                        f.delete();
+                    }
+                }
+                for (File f : files) {
+                    int g = parseGeneration(f.getName(), ".pack");
+                    if (g > generation && idxFile(g).exists()) {
+                        generation = g;
+                    }
+                }
+                for (File f : files) {
+                    int g = Math.max(parseGeneration(f.getName(), ".pack"),
+                            Math.max(parseGeneration(f.getName(), ".idx"),
+                                    Math.max(parseGeneration(f.getName(), ".lru"),
+                                            parseGeneration(f.getName(), ".meta"))));
+                    if (g >= 0 && g != generation) {
+                        f.delete();
+                    }
+                }
+            }
+            openGeneration();
+        } catch (IOException ex) { // Libérer le répertoire
+            lockChannel.close();
+            throw ex;
+        }
+    }
+
+    private File dataFile(int gen) {
+        return new File(dir, "tiles." + gen + ".pack");
+    }
+
+    private File idxFile(int gen) {
+        return new File(dir, "tiles." + gen + ".idx");
+    }
+
+    private File accessFile(int gen) {
+        return new File(dir, "tiles." + gen + ".lru");
+    }
+
+    private File metaFile(int gen) {
+        return new File(dir, "tiles." + gen + ".meta");
+    }
+
+    private static File tmpFile(File f) {
+        return new File(f.getParentFile(), f.getName() + TMP);
+    }
+
+    /**
+     * Renommer un fichier temporaire sous son nom définitif (remplacement
+     * atomique).
+     */
+    private static void commitFile(File f) throws IOException {
+        Files.move(tmpFile(f).toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int parseGeneration(String name, String ext) {
+        if (!name.startsWith("tiles.") || !name.endsWith(ext)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(6, name.length() - ext.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static FileChannel openChannel(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Ouvrir les fichiers de la génération courante et recharger l'index.
+     */
+    private void openGeneration() throws IOException {
+        data = openChannel(dataFile(generation));
+        idx = openChannel(idxFile(generation));
+        dataEnd = data.size();
+        segments.clear();
+        index.clear();
+        liveBytes = 0;
+
+        // Relire le journal (un éventuel enregistrement tronqué est ignoré)
+        long now = System.currentTimeMillis();
+        long nRecords = idx.size() / INDEX_RECORD;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(nRecords * INDEX_RECORD,
+                1024 * INDEX_RECORD));
+        long pos = 0;
+        long end = nRecords * INDEX_RECORD;
+        while (pos < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - pos));
+            readFully(idx, buf, pos);
+            buf.flip();
+            pos += buf.limit();
+            while (buf.remaining() >= INDEX_RECORD) {
+                long key = buf.getLong();
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                Entry old;
+                if (length < 0) { // Suppression
+                    old = index.remove(key);
+                } else if (offset + DATA_HEADER + length <= dataEnd) {
+                    old = index.put(key, new Entry(offset, length, now));
+                    liveBytes += DATA_HEADER + length;
+                } else { // Données absentes (écriture interrompue)
+                    continue;
+                }
+                if (old != null) {
+                    liveBytes -= DATA_HEADER + old.length;
+                }
+            }
+        }
+        idx.truncate(end);
+        idx.position(end);
+        tileCount = index.size();
+
+        readAccessTimes();
+        readMetadata();
+    }
+
+    /**
+     * Relire les dates de dernier accès (les tuiles absentes du fichier
+     * conservent la date d'ouverture).
+     */
+    private void readAccessTimes() throws IOException {
+        File f = accessFile(generation);
+        if (!f.exists()) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(1024 * ACCESS_RECORD);
+            long pos = 0;
+            long end = ch.size() / ACCESS_RECORD * ACCESS_RECORD;
+            while (pos < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                readFully(ch, buf, pos);
+                buf.flip();
+                pos += buf.limit();
+                while (buf.remaining() >= ACCESS_RECORD) {
+                    Entry e = index.get(buf.getLong());
+                    long t = buf.getLong();
+                    if (e != null) {
+                        e.lastAccess = t;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sauvegarder les dates de dernier accès.
+     *
+     * @param f fichier de destination
+     * @param sync forcer l'écriture sur le disque
+     */
+    private void writeAccessTimes(File f, boolean sync) throws IOException {
+        try (FileChannel ch = openChannel(f)) {
+            ch.truncate(0);
+            ByteBuffer buf = ByteBuffer.allocate(1024 * ACCESS_RECORD);
+            long pos = 0;
+            for (long key : index.keys()) {
+                if (!buf.hasRemaining()) {
+                    buf.flip();
+                    writeFully(ch, buf, pos);
+                    pos += buf.limit();
+                    buf.clear();
+                }
+                buf.putLong(key).putLong(index.get(key).lastAccess);
+            }
+            buf.flip();
+            writeFully(ch, buf, pos);
+            if (sync) {
+                ch.force(false);
+            }
+        }
+    }
+
+    /**
+     * Relire les métadonnées HTTP (les tuiles absentes du fichier sont
+     * considérées comme récupérées à l'ouverture).
+     */
+    private void readMetadata() throws IOException {
+        File f = metaFile(generation);
+        metaDirty = false;
+        if (!f.exists()) { // Conserver la date d'ouverture
+            metaDirty = !index.isEmpty();
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(f)))) {
+            while (true) {
+                long key = in.readLong();
+                long fetchTime = in.readLong();
+                long lastModified = in.readLong();
+                byte[] etag = new byte[in.readUnsignedShort()];
+                in.readFully(etag);
+                Entry e = index.get(key);
+                if (e != null) {
+                    e.fetchTime = fetchTime;
+                    e.lastModified = lastModified;
+                    e.etag = etag.length == 0 ? null
+                            : new String(etag, StandardCharsets.UTF_8);
+                }
+            }
+        } catch (EOFException ex) { // Fin du fichier (ou enregistrement tronqué)
+        }
+    }
+
+    /**
+     * Sauvegarder les métadonnées HTTP.
+     *
+     * @param f fichier de destination
+     * @param sync forcer l'écriture sur le disque
+     */
+    private void writeMetadata(File f, boolean sync) throws IOException {
+        FileOutputStream file = new FileOutputStream(f);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (long key : index.keys()) {
+                Entry e = index.get(key);
+                byte[] etag = e.etag == null ? new byte[0]
+                        : e.etag.getBytes(StandardCharsets.UTF_8);
+                out.writeLong(key);
+                out.writeLong(e.fetchTime);
+                out.writeLong(e.lastModified);
+                out.writeShort(etag.length);
+                out.write(etag);
+            }
+            out.flush();
+            if (sync) {
+                file.getFD().sync();
+            }
+        }
+        metaDirty = false;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Fin de fichier inattendue");
+            }
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long pos)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    /**
+     * Indiquer si une tuile est présente dans le cache.
+     *
+     * @param key clé de la tuile
+     * @return
+     */
+    public synchronized boolean contains(long key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Récupérer les données d'une tuile.
+     *
+     * @param key clé de la tuile
+     * @return tampon en lecture seule (vue sur le fichier projeté en mémoire)
+     * ou null si la tuile est absente
+     * @throws IOException
+     */
+    public synchronized ByteBuffer get(long key) throws IOException {
+        Entry e = index.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        e.lastAccess = System.currentTimeMillis();
+        return read(e.offset + DATA_HEADER, e.length);
+    }
+
+    /**
+     * Date de récupération (ou de dernière revalidation) d'une tuile.
+     *
+     * @param key clé de la tuile
+     * @return date en ms ou 0 si la tuile est absente
+     */
+    public synchronized long getFetchTime(long key) {
+        Entry e = index.get(key);
+        return e == null ? 0 : e.fetchTime;
+    }
+
+    /**
+     * Valeur de l'en-tête HTTP ETag reçu avec une tuile.
+     *
+     * @param key clé de la tuile
+     * @return ETag ou null s'il est inconnu
+     */
+    public synchronized String getETag(long key) {
+        Entry e = index.get(key);
+        return e == null ? null : e.etag;
+    }
+
+    /**
+     * Valeur de l'en-tête HTTP Last-Modified reçu avec une tuile.
+     *
+     * @param key clé de la tuile
+     * @return date en ms ou 0 si elle est inconnue
+     */
+    public synchronized long getLastModified(long key) {
+        Entry e = index.get(key);
+        return e == null ? 0 : e.lastModified;
+    }
+
+    /**
+     * Mémoriser les métadonnées HTTP d'une tuile qui vient d'être récupérée.
+     *
+     * @param key clé de la tuile
+     * @param etag en-tête ETag (ou null)
+     * @param lastModified en-tête Last-Modified (ms, 0: inconnu)
+     */
+    public synchronized void setMetadata(long key, String etag, long lastModified) {
+        Entry e = index.get(key);
+        if (e != null) {
+            e.etag = etag;
+            e.lastModified = lastModified;
+            e.fetchTime = System.currentTimeMillis();
+            metaDirty = true;
+        }
+    }
+
+    /**
+     * Signaler qu'une tuile a été revalidée par le serveur (réponse 304).
+     *
+     * @param key clé de la tuile
+     */
+    public synchronized void markRevalidated(long key) {
+        Entry e = index.get(key);
+        if (e != null) {
+            e.fetchTime = System.currentTimeMillis();
+            metaDirty = true;
+        }
+    }
+
+    /**
+     * Ouvrir un flux de lecture sur les données d'une tuile.
+     *
+     * @param key clé de la tuile
+     * @return flux ou null si la tuile est absente
+     * @throws IOException
+     */
+    public InputStream openStream(long key) throws IOException {
+        ByteBuffer b = get(key);
+        return b == null ? null : asStream(b);
+    }
+
+    /**
+     * Flux de lecture sur un tampon (sans copie préalable).
+     *
+     * @param b tampon (sa position est modifiée par la lecture)
+     * @return
+     */
+    public static InputStream asStream(ByteBuffer b) {
+        return new ByteBufferInputStream(b);
+    }
+
+    /**
+     * Lire une zone du fichier de données, directement dans le segment projeté
+     * en mémoire si elle n'est pas à cheval sur deux segments.
+     */
+    private ByteBuffer read(long pos, int length) throws IOException {
+        int seg = (int) (pos >>> SEGMENT_BITS);
+        if (length > 0 && ((pos + length - 1) >>> SEGMENT_BITS) == seg) {
+            MappedByteBuffer m = segment(seg, pos + length);
+            ByteBuffer b = m.duplicate();
+            int start = (int) (pos - ((long) seg << SEGMENT_BITS));
+            b.position(start);
+            b.limit(start + length);
+            return b.slice().asReadOnlyBuffer();
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        readFully(data, b, pos);
+        b.flip();
+        return b.asReadOnlyBuffer();
+    }
+
+    /**
+     * Récupérer (et, si nécessaire, projeter à nouveau pour tenir compte des
+     * ajouts) le segment contenant une position.
+     */
+    private MappedByteBuffer segment(int seg, long needEnd) throws IOException {
+        while (segments.size() <= seg) {
+            segments.add(null);
+        }
+        long segStart = (long) seg << SEGMENT_BITS;
+        MappedByteBuffer m = segments.get(seg);
+        if (m == null || segStart + m.capacity() < needEnd) {
+            // Ne projeter que la partie déjà écrite du fichier
+            long size = Math.min(SEGMENT_SIZE, data.size() - segStart);
+            m = data.map(FileChannel.MapMode.READ_ONLY, segStart, size);
+            segments.set(seg, m);
+        }
+        return m;
+    }
+
+    /**
+     * Ajouter (ou remplacer) une tuile.
+     *
+     * @param key clé de la tuile
+     * @param bytes données (JPEG) de la tuile
+     * @throws IOException
+     */
+    public synchronized void put(long key, ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+        long offset = dataEnd;
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        header.putLong(key).putInt(length).flip();
+        writeFully(data, header, offset);
+        writeFully(data, bytes, offset + DATA_HEADER);
+        dataEnd = offset + DATA_HEADER + length;
+        appendIndex(key, offset, length);
+
+        Entry old = index.put(key, new Entry(offset, length,
+                System.currentTimeMillis()));
+        if (old != null) {
+            liveBytes -= DATA_HEADER + old.length;
+        }
+        liveBytes += DATA_HEADER + length;
+        tileCount = index.size();
+        metaDirty = true;
+    }
+
+    /**
+     * Ajouter (ou remplacer) une tuile.
+     *
+     * @param key clé de la tuile
+     * @param bytes données (JPEG) de la tuile
+     * @throws IOException
+     */
+    public void put(long key, byte[] bytes) throws IOException {
+        put(key, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Ajouter (ou remplacer) une tuile en recopiant directement un flux de
+     * longueur connue dans le fichier de données (FileChannel.transferFrom).
+     *
+     * <p>
+     * La place est réservée au préalable: le verrou du cache n'est donc pas
+     * conservé pendant la recopie (i.e. pendant le téléchargement) et les
+     * lectures restent possibles.
+     *
+     * @param key clé de la tuile
+     * @param src flux des données
+     * @param length nombre d'octets à recopier
+     * @return données écrites, relues sans être comptées comme un accès au
+     * cache (ni succès, ni date d'accès)
+     * @throws IOException
+     */
+    public ByteBuffer put(long key, ReadableByteChannel src, int length)
+            throws IOException {
+        // Réserver la place
+        long offset;
+        int gen;
+        FileChannel ch;
+        synchronized (this) {
+            offset = dataEnd;
+            dataEnd += DATA_HEADER + length;
+            gen = generation;
+            ch = data;
+        }
+
+        // Recopier (l'en-tête étend le fichier jusqu'au début des données,
+        // condition nécessaire à transferFrom)
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        header.putLong(key).putInt(length).flip();
+        writeFully(ch, header, offset);
+        long pos = offset + DATA_HEADER;
+        long remaining = length;
+        while (remaining > 0) {
+            long n = ch.transferFrom(src, pos, remaining);
+            if (n <= 0) {
+                throw new EOFException("Tuile tronquée: " + TileKey.toString(key));
+            }
+            pos += n;
+            remaining -= n;
+        }
+
+        // Valider l'écriture
+        synchronized (this) {
+            if (gen != generation) { // Compactage survenu pendant la recopie
+                throw new IOException("Cache compacté pendant l'écriture de "
+                        + TileKey.toString(key));
+            }
+            appendIndex(key, offset, length);
+            Entry old = index.put(key, new Entry(offset, length,
+                    System.currentTimeMillis()));
+            if (old != null) {
+                liveBytes -= DATA_HEADER + old.length;
+            }
+            liveBytes += DATA_HEADER + length;
+            tileCount = index.size();
+            metaDirty = true;
+            return read(offset + DATA_HEADER, length);
+        }
+    }
+
+    /**
+     * Supprimer une tuile (la place n'est récupérée qu'au compactage).
+     *
+     * @param key clé de la tuile
+     * @return vrai si la tuile était présente
+     * @throws IOException
+     */
+    public synchronized boolean remove(long key) throws IOException {
+        Entry old = index.remove(key);
+        if (old == null) {
+            return false;
+        }
+        liveBytes -= DATA_HEADER + old.length;
+        tileCount = index.size();
+        appendIndex(key, 0, -1);
+        return true;
+    }
+
+    /**
+     * Supprimer les tuiles dont le dernier accès est trop ancien puis, si le
+     * quota est dépassé, les moins récemment utilisées jusqu'à le respecter.
+     *
+     * <p>
+     * Le tri des tuiles s'effectue hors du verrou du cache afin de ne pas
+     * bloquer les lectures.
+     *
+     * @param quota taille maximale des tuiles présentes (en octets)
+     * @param maxAge durée maximale depuis le dernier accès (ms, 0: illimitée)
+     * @return nombre de tuiles supprimées
+     * @throws IOException
+     */
+    public int evict(long quota, long maxAge) throws IOException {
+        final long[] keys;
+        final long[] times;
+        long live;
+        synchronized (this) {
+            keys = index.keys();
+            times = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                times[i] = index.get(keys[i]).lastAccess;
+            }
+            live = liveBytes;
+        }
+        long now = System.currentTimeMillis();
+        if (live <= quota && (maxAge <= 0 || keys.length == 0)) {
+            return 0;
+        }
+
+        // Trier de la moins à la plus récemment utilisée
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(times[a], times[b]);
+            }
+        });
+
+        int n = 0;
+        for (int i : order) {
+            boolean expired = maxAge > 0 && now - times[i] > maxAge;
+            if (!expired && live <= quota) {
+                break;
+            }
+            synchronized (this) {
+                // Ignorer une tuile consultée entre temps
+                Entry e = index.get(keys[i]);
+                if (e != null && e.lastAccess == times[i] && remove(keys[i])) {
+                    if (expired) {
+                        expirations++;
+                    } else {
+                        evictions++;
+                    }
+                    n++;
+                }
+                live = liveBytes;
+            }
+        }
+        return n;
+    }
+
+    private void appendIndex(long key, long offset, int length) throws IOException {
+        ByteBuffer rec = ByteBuffer.allocate(INDEX_RECORD);
+        rec.putLong(key).putLong(offset).putInt(length).flip();
+        while (rec.hasRemaining()) {
+            idx.write(rec);
+        }
+    }
+
+    /**
+     * Réécrire les tuiles présentes dans une nouvelle génération de fichiers
+     * afin de récupérer la place des tuiles remplacées ou supprimées.
+     *
+     * <p>
+     * Les données du fichier n'étant jamais modifiées après leur écriture, les
+     * tuiles présentes au début du compactage sont recopiées hors du verrou du
+     * cache: lectures et écritures restent possibles pendant la recopie. Le
+     * verrou n'est pris que pour recopier les tuiles ajoutées entre temps puis
+     * basculer sur la nouvelle génération.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) { // (un seul compactage à la fois)
+            // Tuiles présentes au début du compactage
+            final long[] keys;
+            final Entry[] entries;
+            final FileChannel src;
+            final int newGen;
+            synchronized (this) {
+                keys = index.keys();
+                entries = new Entry[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    entries[i] = index.get(keys[i]);
+                }
+                src = data;
+                newGen = generation + 1;
+            }
+
+            try (FileChannel out = openChannel(tmpFile(dataFile(newGen)));
+                    FileChannel outIdx = openChannel(tmpFile(idxFile(newGen)))) {
+                out.truncate(0);
+                outIdx.truncate(0);
+                ByteBuffer rec = ByteBuffer.allocate(INDEX_RECORD);
+
+                // Recopier sans verrou (seul le compactage ferme le fichier)
+                LongTileMap<Entry> copied = new LongTileMap<>(keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    copyRecord(keys[i], entries[i], src, out, outIdx, rec);
+                    copied.put(keys[i], entries[i]);
+                }
+
+                // Tuiles ajoutées ou remplacées pendant la recopie: recopiées à
+                // leur tour sans verrou tant qu'elles sont nombreuses
+                for (int pass = 1; pass < MAX_COMPACT_PASSES; pass++) {
+                    long[] added;
+                    Entry[] addedEntries;
+                    synchronized (this) {
+                        added = changedKeys(copied);
+                        if (added.length <= MAX_LOCKED_COPIES) {
+                            break;
+                        }
+                        addedEntries = new Entry[added.length];
+                        for (int i = 0; i < added.length; i++) {
+                            addedEntries[i] = index.get(added[i]);
+                        }
+                    }
+                    for (int i = 0; i < added.length; i++) {
+                        copyRecord(added[i], addedEntries[i], src, out, outIdx, rec);
+                        copied.put(added[i], addedEntries[i]);
+                    }
+                }
+
+                // Écrire sur le disque ce qui a été recopié avant de prendre le
+                // verrou
+                out.force(false);
+                outIdx.force(false);
+
+                synchronized (this) {
+                    // Dernières modifications, verrou pris
+                    for (long key : changedKeys(copied)) {
+                        copyRecord(key, index.get(key), src, out, outIdx, rec);
+                    }
+                    for (long key : copied.keys()) {
+                        if (!index.containsKey(key)) { // Supprimée
+                            rec.clear();
+                            rec.putLong(key).putLong(0).putInt(-1).flip();
+                            while (rec.hasRemaining()) {
+                                outIdx.write(rec);
+                            }
+                        }
+                    }
+                    out.force(false);
+                    outIdx.force(false);
+                    writeAccessTimes(tmpFile(accessFile(newGen)), true);
+                    writeMetadata(tmpFile(metaFile(newGen)), true);
+
+                    // Valider la génération: le renommage de l'index en dernier
+                    commitFile(dataFile(newGen));
+                    commitFile(accessFile(newGen));
+                    commitFile(metaFile(newGen));
+                    commitFile(idxFile(newGen));
+
+                    // Basculer sur la nouvelle génération
+                    close();
+                    generation = newGen;
+                    openGeneration();
+                }
+            } catch (IOException ex) {
+                synchronized (this) {
+                    if (generation != newGen) { // Conserver la génération actuelle
+                        for (File f : new File[]{dataFile(newGen), accessFile(newGen),
+                            metaFile(newGen), idxFile(newGen)}) {
+                            tmpFile(f).delete();
+                            f.delete();
+                        }
+                    }
+                }
+                throw ex;
+            }
+
+            // Supprimer l'ancienne génération, hors du verrou (l'index en
+            // premier: elle n'est plus valide). La suppression peut échouer
+            // tant que l'ancien fichier est projeté en mémoire (Windows): il
+            // sera alors supprimé à la prochaine ouverture
+            int oldGen = newGen - 1;
+            idxFile(oldGen).delete();
+            dataFile(oldGen).delete();
+            accessFile(oldGen).delete();
+            metaFile(oldGen).delete();
+        }
+    }
+
+    /**
+     * Tuiles présentes dont l'enregistrement n'a pas encore été recopié
+     * (ajoutées ou remplacées depuis).
+     */
+    private long[] changedKeys(LongTileMap<Entry> copied) {
+        long[] keys = index.keys();
+        int n = 0;
+        for (long key : keys) {
+            if (copied.get(key) != index.get(key)) {
+                keys[n++] = key;
+            }
+        }
+        return Arrays.copyOf(keys, n);
+    }
+
+    /**
+     * Recopier l'enregistrement de données d'une tuile à la fin d'un nouveau
+     * fichier de données et l'ajouter au nouvel index.
+     */
+    private static void copyRecord(long key, Entry e, FileChannel src,
+            FileChannel out, FileChannel outIdx, ByteBuffer rec) throws IOException {
+        long pos = out.position();
+        long n = DATA_HEADER + e.length;
+        long done = 0;
+        while (done < n) {
+            long k = src.transferTo(e.offset + done, n - done, out);
+            if (k <= 0) {
+                throw new EOFException("Enregistrement tronqué à " + e.offset);
+            }
+            done += k;
+        }
+        rec.clear();
+        rec.putLong(key).putLong(pos).putInt(e.length).flip();
+        while (rec.hasRemaining()) {
+            outIdx.write(rec);
+        }
+    }
+
+    /**
+     * Fermer les fichiers de la génération courante.
+     */
+    private void close() throws IOException {
+        segments.clear();
+        data.close();
+        idx.close();
+    }
+
+    /**
+     * Forcer l'écriture des données sur le disque.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        data.force(false);
+        idx.force(false);
+        // Écrire sous un nom temporaire puis renommer: un arrêt brutal
+        // pendant l'écriture conserve la version précédente
+        File f = accessFile(generation);
+        writeAccessTimes(tmpFile(f), true);
+        commitFile(f);
+        if (metaDirty) {
+            f = metaFile(generation);
+            writeMetadata(tmpFile(f), true);
+            commitFile(f);
+        }
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Taille occupée par les tuiles présentes.
+     *
+     * @return nombre d'octets
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Place occupée par des tuiles remplacées ou supprimées (récupérable par
+     * compactage).
+     *
+     * @return nombre d'octets
+     */
+    public long getDeadBytes() {
+        return dataEnd - liveBytes;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Taux de succès des lectures.
+     *
+     * @return valeur entre 0 et 1 (0 si aucune lecture)
+     */
+    public double getHitRatio() {
+        long h = hits, m = misses;
+        return h + m == 0 ? 0 : (double) h / (h + m);
+    }
+
+    /**
+     * Nombre de tuiles supprimées pour respecter le quota.
+     *
+     * @return
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Nombre de tuiles supprimées car trop anciennes.
+     *
+     * @return
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Remettre les statistiques à zéro.
+     */
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        expirations = 0;
+    }
+
+    @Override
+    public String toString() { // (sans verrou)
+        long live = liveBytes;
+        return String.format("%d tuiles, %d Mo (+%d Mo récupérables), succès=%.0f%%, "
+                + "évictions=%d, expirations=%d", tileCount,
+                live >> 20, (dataEnd - live) >> 20,
+                100 * getHitRatio(), evictions, expirations);
+    }
+
+    /**
+     * Flux de lecture sur un ByteBuffer (sans copie préalable).
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    static {
+        // Forcer l'écriture des caches ouverts à la fin de l'application
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (stores) {
+                    for (TilePackStore s : stores.values()) {
+                        try {
+                            s.flush();
+                        } catch (IOException ex) {
+                            Logger.getLogger(TilePackStore.class.getName())
+                                    .log(Level.WARNING, null, ex);
+                        }
+                    }
+                }
+            }
+        }));
+    }
+}
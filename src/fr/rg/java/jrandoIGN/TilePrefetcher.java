@@ -0,0 +1,273 @@
+package fr.rg.java.jrandoIGN;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Préchargement spéculatif des tuiles dans le cache disque.
+ *
+ * <p>
+ * Deux situations sont anticipées:
+ * <ul>
+ * <li>translation de la carte: les rangées de tuiles situées au-delà du bord
+ * vers lequel se dirige la carte sont téléchargées, sur une profondeur
+ * proportionnelle à la vitesse de déplacement.</li>
+ * <li>zoom à la molette: dès que le facteur de zoom s'approche du seuil de
+ * changement de niveau IGN, les tuiles couvrant l'écran au niveau ignScale+1
+ * (ou ignScale-1) sont téléchargées.</li>
+ * </ul>
+ *
+ * <p>
+ * Les téléchargements s'effectuent sur des threads de priorité minimale et les
+ * demandes en attente sont abandonnées dès que l'utilisateur inverse le sens
+ * du déplacement ou du zoom. Ils sont enregistrés parmi les demandes en cours
+ * du service de tuiles (TileService.prefetch()): une tuile déjà demandée
+ * n'est pas préchargée et une tuile en cours de préchargement n'est pas
+ * téléchargée à nouveau lorsqu'elle devient visible. La présence d'une tuile
+ * dans le cache disque n'est vérifiée que sur les threads de préchargement.
+ *
+ * <p>
+ * Les méthodes on...() doivent être appelées depuis l'Event Dispatch Thread.
+ */
+public class TilePrefetcher {
+
+    private static final int TILE_PIXEL_DIM = 256;
+    // Nombre de threads de préchargement
+    private static final int N_THREADS = 2;
+    // Durée anticipée pour le calcul de la profondeur de préchargement (ms)
+    private static final double LOOKAHEAD_MS = 800;
+    // Profondeur maximale (en tuiles) au-delà du bord
+    private static final int MAX_DEPTH = 3;
+    // Coefficient du lissage exponentiel de la vitesse
+    private static final double SMOOTHING = 0.3;
+    // Seuils du facteur de zoom à partir desquels précharger le niveau voisin
+    private static final double ZOOM_IN_THRESHOLD = 1.4;
+    private static final double ZOOM_OUT_THRESHOLD = 0.7;
+
+    // Threads partagés par toutes les cartes
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            N_THREADS, N_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tile-prefetch-" + n.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private final TileService service;
+
+    // Demandes de préchargement en cours (clé -> tâche)
+    private final LongTileMap<Future<?>> requested = new LongTileMap<>();
+    private final ArrayList<Future<?>> pending = new ArrayList<>();
+
+    // Vitesse lissée de la carte (pixels/ms)
+    private double vx, vy;
+    private long lastPanTime;
+    // Sens du dernier zoom anticipé (+1, -1 ou 0)
+    private int zoomDirection;
+
+    /**
+     * Créer le préchargeur.
+     *
+     * @param service service de tuiles (doit disposer d'un cache disque)
+     */
+    public TilePrefetcher(TileService service) {
+        this.service = service;
+    }
+
+    /**
+     * La carte a été translatée.
+     *
+     * @param dx déplacement horizontal de la carte (pixels)
+     * @param dy déplacement vertical de la carte (pixels)
+     * @param layer couche affichée
+     * @param zoom niveau IGN
+     * @param rMin première ligne de tuiles chargée
+     * @param rMax dernière ligne de tuiles chargée
+     * @param cMin première colonne de tuiles chargée
+     * @param cMax dernière colonne de tuiles chargée
+     */
+    public void onPan(double dx, double dy, int layer, int zoom,
+            int rMin, int rMax, int cMin, int cMax) {
+        long now = System.currentTimeMillis();
+        long dt = Math.max(1, now - lastPanTime);
+        lastPanTime = now;
+        double nvx = dx / dt;
+        double nvy = dy / dt;
+
+        // Inversion du sens de déplacement: abandonner les anticipations
+        if (nvx * vx + nvy * vy < 0) {
+            cancel();
+            vx = nvx;
+            vy = nvy;
+            return;
+        }
+        vx = SMOOTHING * nvx + (1 - SMOOTHING) * vx;
+        vy = SMOOTHING * nvy + (1 - SMOOTHING) * vy;
+
+        // Profondeur à précharger dans chaque direction
+        int depthX = depth(vx);
+        int depthY = depth(vy);
+        ArrayList<Long> keys = new ArrayList<>();
+        // La carte se déplace vers la droite: l'ouest devient visible
+        for (int d = 1; d <= depthX; d++) {
+            int c = vx > 0 ? cMin - d : cMax + d;
+            for (int r = rMin - depthY; r <= rMax + depthY; r++) {
+                addKey(keys, layer, zoom, r, c);
+            }
+        }
+        for (int d = 1; d <= depthY; d++) {
+            int r = vy > 0 ? rMin - d : rMax + d;
+            for (int c = cMin; c <= cMax; c++) {
+                addKey(keys, layer, zoom, r, c);
+            }
+        }
+        request(keys);
+    }
+
+    private static int depth(double v) {
+        if (v == 0) {
+            return 0;
+        }
+        return (int) Math.min(MAX_DEPTH,
+                1 + Math.abs(v) * LOOKAHEAD_MS / TILE_PIXEL_DIM);
+    }
+
+    /**
+     * Le facteur de zoom a été modifié.
+     *
+     * @param scale facteur de zoom dans la carte
+     * @param layer couche affichée
+     * @param zoom niveau IGN
+     * @param center géolocalisation au centre de l'écran
+     * @param width largeur de l'écran (pixels)
+     * @param height hauteur de l'écran (pixels)
+     */
+    public void onZoom(double scale, int layer, int zoom, GeoLocation center,
+            int width, int height) {
+        int direction = 0;
+        if (scale >= ZOOM_IN_THRESHOLD && zoom < 16) {
+            direction = 1;
+        } else if (scale <= ZOOM_OUT_THRESHOLD && zoom > 2) {
+            direction = -1;
+        }
+        if (direction != zoomDirection) { // Changement de sens
+            cancel();
+            zoomDirection = direction;
+        }
+        if (direction == 0) {
+            return;
+        }
+
+        // Tuiles couvrant l'écran au niveau voisin (le facteur de zoom vaut
+        // alors 1)
+        int z = zoom + direction;
+        int rCenter = WMTS.latToTileRow(center.latitude, z);
+        int cCenter = WMTS.longToTileCol(center.longitude, z);
+        int nx = width / TILE_PIXEL_DIM / 2 + 1;
+        int ny = height / TILE_PIXEL_DIM / 2 + 1;
+        ArrayList<Long> keys = new ArrayList<>();
+        for (int d = 0; d <= Math.max(nx, ny); d++) { // du centre vers les bords
+            for (int r = rCenter - Math.min(d, ny); r <= rCenter + Math.min(d, ny); r++) {
+                for (int c = cCenter - Math.min(d, nx); c <= cCenter + Math.min(d, nx); c++) {
+                    if (Math.max(Math.abs(r - rCenter), Math.abs(c - cCenter)) == d) {
+                        addKey(keys, layer, z, r, c);
+                    }
+                }
+            }
+        }
+        request(keys);
+    }
+
+    /**
+     * Ajouter la clé d'une tuile si elle existe à ce niveau de zoom (les
+     * tuiles composées, jamais stockées sur le disque, sont remplacées par
+     * les deux tuiles qui les constituent).
+     */
+    private static void addKey(ArrayList<Long> keys, int layer, int zoom, int r, int c) {
+        if (r >= 0 && c >= 0 && r < (1 << zoom) && c < (1 << zoom)) {
+            if (layer == TileKey.LAYER_BLEND) {
+                keys.add(TileKey.of(TileKey.LAYER_ORTHO, zoom, r, c));
+                keys.add(TileKey.of(TileKey.LAYER_MAPS, zoom, r, c));
+            } else {
+                keys.add(TileKey.of(layer, zoom, r, c));
+            }
+        }
+    }
+
+    /**
+     * Soumettre le téléchargement des tuiles qui ne sont pas déjà demandées.
+     */
+    private void request(ArrayList<Long> keys) {
+        purgeDone();
+        if (!service.getFetcher().isServerAvailable()) { // Ne pas insister
+            return;
+        }
+        for (long key : keys) {
+            if (requested.containsKey(key)) {
+                continue;
+            }
+            Future<?> f = service.prefetch(key, executor);
+            if (f != null) {
+                requested.put(key, f);
+                pending.add(f);
+            }
+        }
+    }
+
+    /**
+     * Oublier les demandes terminées.
+     */
+    private void purgeDone() {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (pending.get(i).isDone()) {
+                pending.remove(i);
+            }
+        }
+        if (pending.isEmpty()) {
+            requested.clear();
+        }
+    }
+
+    /**
+     * Abandonner les préchargements non encore démarrés.
+     */
+    public void cancel() {
+        for (long key : requested.keys()) {
+            service.cancelPrefetch(key);
+        }
+        pending.clear();
+        requested.clear();
+        executor.purge();
+    }
+
+    /**
+     * Nombre de préchargements en attente ou en cours.
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        purgeDone();
+        return pending.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("vitesse=(%.2f, %.2f) px/ms, en attente=%d",
+                vx, vy, pending.size());
+    }
+}
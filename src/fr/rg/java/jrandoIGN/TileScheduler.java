@@ -0,0 +1,170 @@
+package fr.rg.java.jrandoIGN;
+
+import java.util.Arrays;
+
+/**
+ * File de priorité des tuiles en attente de téléchargement (le plus petit
+ * score est servi en premier).
+ *
+ * <p>
+ * Il s'agit d'un tas binaire indexé: chaque élément mémorise sa position dans
+ * le tas, ce qui permet de modifier son score sur place ou de le retirer en
+ * O(log n), sans recréer la file lorsque la carte est déplacée ou zoomée.
+ *
+ * <p>
+ * Les méthodes sont synchronisées: les scores sont mis à jour depuis l'Event
+ * Dispatch Thread et les éléments retirés depuis les threads de
+ * téléchargement.
+ *
+ * @param <E> type des éléments
+ */
+public class TileScheduler<E extends TileScheduler.Entry> {
+
+    /**
+     * Élément de la file (un élément appartient à une seule file).
+     */
+    public static class Entry {
+
+        double score;
+        int index = -1; // position dans le tas (-1 hors de la file)
+    }
+
+    private Entry[] heap = new Entry[64];
+    private int size = 0;
+
+    /**
+     * Ajouter un élément ou modifier son score s'il est déjà dans la file.
+     *
+     * @param e élément
+     * @param score priorité (la plus faible est servie en premier)
+     */
+    public synchronized void offer(E e, double score) {
+        if (e.index >= 0) {
+            update(e, score);
+            return;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, 2 * size);
+        }
+        e.score = score;
+        e.index = size;
+        heap[size++] = e;
+        siftUp(e.index);
+    }
+
+    /**
+     * Modifier le score d'un élément de la file.
+     *
+     * @param e élément
+     * @param score nouveau score
+     * @return false si l'élément n'est pas (ou plus) dans la file
+     */
+    public synchronized boolean update(E e, double score) {
+        if (e.index < 0) {
+            return false;
+        }
+        double old = e.score;
+        e.score = score;
+        if (score < old) {
+            siftUp(e.index);
+        } else if (score > old) {
+            siftDown(e.index);
+        }
+        return true;
+    }
+
+    /**
+     * Retirer un élément de la file.
+     *
+     * @param e élément
+     * @return false si l'élément n'est pas (ou plus) dans la file
+     */
+    public synchronized boolean remove(E e) {
+        int i = e.index;
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * Retirer l'élément de plus petit score.
+     *
+     * @return élément ou null si la file est vide
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized E poll() {
+        if (size == 0) {
+            return null;
+        }
+        Entry e = heap[0];
+        removeAt(0);
+        return (E) e;
+    }
+
+    /**
+     * Indiquer si un élément est dans la file.
+     *
+     * @param e
+     * @return
+     */
+    public synchronized boolean contains(E e) {
+        return e.index >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void removeAt(int i) {
+        Entry e = heap[i];
+        e.index = -1;
+        Entry last = heap[--size];
+        heap[size] = null;
+        if (i < size) { // Combler le trou avec le dernier élément
+            heap[i] = last;
+            last.index = i;
+            siftDown(i);
+            if (heap[i] == last) {
+                siftUp(i);
+            }
+        }
+    }
+
+    private void siftUp(int i) {
+        Entry e = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            Entry p = heap[parent];
+            if (p.score <= e.score) {
+                break;
+            }
+            heap[i] = p;
+            p.index = i;
+            i = parent;
+        }
+        heap[i] = e;
+        e.index = i;
+    }
+
+    private void siftDown(int i) {
+        Entry e = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1].score < heap[child].score) {
+                child++;
+            }
+            Entry c = heap[child];
+            if (e.score <= c.score) {
+                break;
+            }
+            heap[i] = c;
+            c.index = i;
+            i = child;
+        }
+        heap[i] = e;
+        e.index = i;
+    }
+}
@@ -0,0 +1,1104 @@
+package fr.rg.java.jrandoIGN;
+
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import javax.swing.ImageIcon;
+import javax.swing.Timer;
+
+/**
+ * Service de tuiles unique, partagé par toutes les cartes de l'application.
+ *
+ * <p>
+ * Il regroupe le moteur de téléchargement, le cache mémoire et le cache
+ * disque. Chaque carte s'abonne (Subscription) en indiquant la fenêtre de
+ * tuiles qu'elle affiche: les tuiles absentes du cache mémoire sont demandées
+ * une seule fois, quel que soit le nombre de cartes qui les attendent, et
+ * chaque abonné est prévenu dès qu'une tuile de sa fenêtre est disponible.
+ *
+ * <p>
+ * Les téléchargements en attente sont classés dans une file de priorité: les
+ * tuiles visibles d'abord, puis les plus proches du centre de l'écran. Ce
+ * classement est mis à jour sur place à chaque translation, zoom ou
+ * redimensionnement de la carte (Subscription.setFocus()).
+ *
+ * <p>
+ * En attendant une tuile, une image de substitution peut être construite à
+ * partir de la tuile parente (niveau inférieur) ou des tuiles filles (niveau
+ * supérieur) présentes dans le cache mémoire.
+ *
+ * <p>
+ * Les tuiles de la couche TileKey.LAYER_BLEND (carte semi-transparente sur la
+ * vue aérienne) sont composées une seule fois, sur un thread de décodage, à
+ * partir des tuiles des deux couches: leur affichage ne coûte pas plus que
+ * celui d'une tuile simple.
+ *
+ * <p>
+ * Les tuiles du cache disque récupérées depuis plus de tile_refresh_days
+ * jours sont affichées immédiatement puis revalidées auprès du serveur.
+ *
+ * <p>
+ * Les tuiles refusées pendant l'ouverture du disjoncteur du moteur de
+ * téléchargement ne restent pas absentes: les tuiles visibles manquantes sont
+ * redemandées à la fin de l'ouverture (requête d'essai) puis à la fermeture
+ * du disjoncteur.
+ *
+ * <p>
+ * Les préchargements (TilePrefetcher) passent également par les demandes en
+ * cours: une tuile en cours de préchargement n'est pas téléchargée une
+ * seconde fois lorsqu'elle entre dans la fenêtre d'une carte.
+ *
+ * <p>
+ * Les méthodes du service et des abonnements doivent être appelées depuis
+ * l'Event Dispatch Thread; les notifications y sont également délivrées.
+ */
+public class TileService {
+
+    /**
+     * Notification de la disponibilité d'une tuile.
+     */
+    public interface TileListener {
+
+        /**
+         * Une tuile de la fenêtre de l'abonné vient d'être placée dans le cache
+         * mémoire (appelée depuis l'Event Dispatch Thread).
+         *
+         * @param key clé de la tuile
+         */
+        void tileReady(long key);
+
+        /**
+         * L'image de substitution (TileService.getFallback()) d'une tuile de
+         * la fenêtre de l'abonné, toujours absente, peut être améliorée: sa
+         * tuile parente ou l'une de ses tuiles filles vient d'arriver
+         * (appelée depuis l'Event Dispatch Thread).
+         *
+         * @param key clé de la tuile absente
+         */
+        void fallbackChanged(long key);
+    }
+
+    private static final int TILE_PIXEL_DIM = 256;
+    // Budget du cache des images de substitution (en Mo)
+    private static final int FALLBACK_CACHE_MB = 16;
+    // Pénalité (en tuiles²) des tuiles hors de l'écran: elles passent après
+    // toutes les tuiles visibles
+    private static final double HIDDEN_PENALTY = 1e6;
+
+    // Préférence: opacité de la carte superposée à la vue aérienne (en %)
+    public static final String KEY_BLEND_OPACITY = "blend_opacity";
+    public static final int DEFAULT_BLEND_OPACITY = 50;
+
+    // Préférence: délai avant revalidation d'une tuile du cache disque (en
+    // jours)
+    public static final String KEY_TILE_REFRESH_DAYS = "tile_refresh_days";
+    public static final int DEFAULT_TILE_REFRESH_DAYS = 30;
+
+    private static TileService instance;
+
+    private final TileFetcher fetcher;
+    private final TileMemoryCache memoryCache;
+    // Images de substitution construites depuis les niveaux voisins
+    private final TileMemoryCache fallbackCache
+            = new TileMemoryCache(FALLBACK_CACHE_MB * 1024L * 1024L);
+    private TilePackStore store; // null si pas de cache disque
+    private final long refreshDelay; // délai avant revalidation (ms)
+    // Opacité des tuiles composées et nombre de modifications de ce réglage
+    private volatile float blendOpacity;
+    private volatile int blendGeneration = 0;
+
+    // Tuiles demandées et non encore reçues, tous abonnés confondus
+    private final LongTileMap<Request> inFlight = new LongTileMap<>();
+    private final ArrayList<Subscription> subscriptions = new ArrayList<>();
+    private final CompletionService<LoadedTile> batch;
+    // Demandes non démarrées, de la plus prioritaire à la moins prioritaire
+    private final TileScheduler<Request> scheduler = new TileScheduler<>();
+    // Tâches de téléchargement soumises (une par demande ajoutée à la file)
+    private final ArrayDeque<Future<?>> workers = new ArrayDeque<>();
+    // Nouvel essai à la fin de l'ouverture du disjoncteur
+    private Timer retryTimer;
+
+    /**
+     * Tâche de téléchargement: traiter la demande la plus prioritaire.
+     */
+    private final Callable<Callable<LoadedTile>> worker
+            = new Callable<Callable<LoadedTile>>() {
+        @Override
+        public Callable<LoadedTile> call() {
+            Request req = scheduler.poll();
+            if (req == null) { // Demande abandonnée entre temps
+                return NO_TILE;
+            }
+            return fetchTile(req.key);
+        }
+    };
+
+    // Tâche de décodage sans résultat
+    private static final Callable<LoadedTile> NO_TILE = new Callable<LoadedTile>() {
+        @Override
+        public LoadedTile call() {
+            return null;
+        }
+    };
+
+    /**
+     * Récupérer le service partagé (créé au premier appel).
+     *
+     * @return
+     */
+    public static synchronized TileService getInstance() {
+        if (instance == null) {
+            instance = new TileService();
+        }
+        return instance;
+    }
+
+    private TileService() {
+        fetcher = new TileFetcher(TileFetcher.DEFAULT_MAX_REQUESTS);
+        batch = fetcher.newBatch();
+
+        // Cache disque (non autorisé par l'IGN, désactivable, inutile pour une
+        // source locale)
+        Preferences prefs = Preferences.userNodeForPackage(IGNMap.class);
+        if (prefs.getBoolean(IGNMap.KEY_USE_LOCAL_TILE_CACHE, true)
+                && fetcher.getSource().isRemote()) {
+            try {
+                File dir = IGNMap.getDefaultTileCacheDir();
+                store = TilePackStore.open(dir);
+                // Importer l'ancien cache éventuel (un fichier par tuile)
+                TileCacheMigration.start(dir, store);
+                // Borner la taille du cache en tâche de fond
+                TileCacheJanitor.start(store);
+            } catch (IOException ex) { // Pas de cache disque
+                Logger.getLogger(TileService.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        refreshDelay = prefs.getInt(KEY_TILE_REFRESH_DAYS, DEFAULT_TILE_REFRESH_DAYS)
+                * 24L * 3600 * 1000;
+        blendOpacity = prefs.getInt(KEY_BLEND_OPACITY, DEFAULT_BLEND_OPACITY) / 100f;
+
+        // Cache mémoire (LRU borné en octets)
+        memoryCache = new TileMemoryCache(prefs.getInt(TileMemoryCache.KEY_MEMORY_CACHE_MB,
+                TileMemoryCache.DEFAULT_MEMORY_CACHE_MB) * 1024L * 1024L);
+
+        // Publier les mesures (JConsole, JMC)
+        fetcher.getMetrics().attach(this, memoryCache, store);
+        fetcher.getMetrics().register();
+
+        // Redemander les tuiles manquantes quand le serveur redevient
+        // accessible
+        fetcher.getCircuitBreaker().setListener(new CircuitBreaker.Listener() {
+            @Override
+            public void stateChanged(final CircuitBreaker.State state) {
+                EventQueue.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        breakerChanged(state);
+                    }
+                });
+            }
+        });
+
+        // Transmettre les tuiles décodées à l'Event Dispatch Thread
+        Thread dispatcher = new Thread("tile-service") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        final LoadedTile t = batch.take().get();
+                        if (t != null) {
+                            EventQueue.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    deliver(t);
+                                }
+                            });
+                        }
+                    } catch (InterruptedException ex) {
+                        break;
+                    } catch (ExecutionException ex) { // Tuile perdue
+                        Logger.getLogger(TileService.class.getName()).log(Level.WARNING,
+                                null, ex.getCause());
+                    }
+                }
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Moteur de téléchargement partagé.
+     *
+     * @return
+     */
+    public TileFetcher getFetcher() {
+        return fetcher;
+    }
+
+    /**
+     * Cache mémoire partagé.
+     *
+     * @return
+     */
+    public TileMemoryCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * Cache disque partagé.
+     *
+     * @return cache disque ou null s'il n'est pas utilisé
+     */
+    public TilePackStore getStore() {
+        return store;
+    }
+
+    /**
+     * Opacité de la carte superposée à la vue aérienne (couche
+     * TileKey.LAYER_BLEND).
+     *
+     * @return pourcentage
+     */
+    public int getBlendOpacity() {
+        return Math.round(blendOpacity * 100);
+    }
+
+    /**
+     * Modifier (et mémoriser) l'opacité de la carte superposée à la vue
+     * aérienne: les tuiles composées sont oubliées puis composées à nouveau
+     * pour les abonnés qui les affichent.
+     *
+     * @param percent pourcentage (entre 0 et 100)
+     */
+    public void setBlendOpacity(int percent) {
+        percent = Math.max(0, Math.min(100, percent));
+        Preferences.userNodeForPackage(IGNMap.class).putInt(KEY_BLEND_OPACITY, percent);
+        blendOpacity = percent / 100f;
+        blendGeneration++;
+        memoryCache.removeLayer(TileKey.LAYER_BLEND);
+        fallbackCache.removeLayer(TileKey.LAYER_BLEND);
+        for (Subscription s : new ArrayList<>(subscriptions)) {
+            if (s.layer == TileKey.LAYER_BLEND) {
+                s.setWindow(s.layer, s.zoom, s.rMin, s.rMax, s.cMin, s.cMax);
+            }
+        }
+    }
+
+    /**
+     * Image de substitution d'une tuile absente du cache mémoire: quart
+     * agrandi de la tuile parente, recouvert des tuiles filles disponibles
+     * réduites.
+     *
+     * <p>
+     * Les images construites, même incomplètes, sont mémorisées. L'arrivée de
+     * la tuile oublie son image de substitution; l'arrivée de sa tuile
+     * parente ou d'une de ses tuiles filles l'oublie également et prévient les
+     * abonnés (TileListener.fallbackChanged()) qu'une meilleure image est
+     * disponible.
+     *
+     * @param key clé de la tuile manquante
+     * @return image de substitution ou null si aucune n'est disponible
+     */
+    public ImageIcon getFallback(long key) {
+        ImageIcon img = fallbackCache.peek(key);
+        if (img != null) {
+            return img;
+        }
+        int layer = TileKey.layer(key);
+        int zoom = TileKey.zoom(key);
+        int r = TileKey.row(key);
+        int c = TileKey.col(key);
+        int half = TILE_PIXEL_DIM / 2;
+        BufferedImage fallback = null;
+        Graphics2D g = null;
+
+        // Quart de la tuile parente agrandi 2 fois
+        ImageIcon parent = zoom > 0
+                ? memoryCache.peek(TileKey.of(layer, zoom - 1, r / 2, c / 2)) : null;
+        if (parent != null) {
+            fallback = createTileImage();
+            g = fallback.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            int sx = (c % 2) * half;
+            int sy = (r % 2) * half;
+            g.drawImage(parent.getImage(), 0, 0, TILE_PIXEL_DIM, TILE_PIXEL_DIM,
+                    sx, sy, sx + half, sy + half, null);
+        }
+
+        // Tuiles filles réduites 2 fois, plus précises
+        if (zoom < 31) { // (niveau maximal d'une clé)
+            for (int i = 0; i < 4; i++) {
+                ImageIcon child = memoryCache.peek(
+                        TileKey.of(layer, zoom + 1, 2 * r + i / 2, 2 * c + i % 2));
+                if (child == null) {
+                    continue;
+                }
+                if (fallback == null) {
+                    fallback = createTileImage();
+                    g = fallback.createGraphics();
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                }
+                g.drawImage(child.getImage(), (i % 2) * half, (i / 2) * half,
+                        half, half, null);
+            }
+        }
+        if (fallback == null) {
+            return null;
+        }
+        g.dispose();
+        img = new ImageIcon(fallback);
+        fallbackCache.put(key, img);
+        return img;
+    }
+
+    /**
+     * Une tuile vient d'arriver dans le cache mémoire: oublier les images de
+     * substitution construites sans elle (tuile parente et tuiles filles) et
+     * prévenir les abonnés qui les affichent.
+     */
+    private void improveFallbacks(long key) {
+        int layer = TileKey.layer(key);
+        int zoom = TileKey.zoom(key);
+        int r = TileKey.row(key);
+        int c = TileKey.col(key);
+        long[] related = new long[5];
+        int n = 0;
+        if (zoom > 0) {
+            related[n++] = TileKey.of(layer, zoom - 1, r / 2, c / 2);
+        }
+        if (zoom < 31) {
+            for (int i = 0; i < 4; i++) {
+                related[n++] = TileKey.of(layer, zoom + 1, 2 * r + i / 2, 2 * c + i % 2);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            long k = related[i];
+            fallbackCache.remove(k);
+            if (memoryCache.contains(k)) { // (substitution inutile)
+                continue;
+            }
+            for (Subscription s : new ArrayList<>(subscriptions)) {
+                if (s.covers(k)) {
+                    s.listener.fallbackChanged(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Image vide au format de l'écran.
+     */
+    private static BufferedImage createTileImage() {
+        GraphicsConfiguration gc = TileFetcher.getScreenConfig();
+        if (gc == null) {
+            return new BufferedImage(TILE_PIXEL_DIM, TILE_PIXEL_DIM,
+                    BufferedImage.TYPE_INT_RGB);
+        }
+        return gc.createCompatibleImage(TILE_PIXEL_DIM, TILE_PIXEL_DIM);
+    }
+
+    /**
+     * Créer un abonnement (actif dès que sa fenêtre est définie).
+     *
+     * @param listener destinataire des notifications
+     * @return
+     */
+    public Subscription subscribe(TileListener listener) {
+        return new Subscription(listener);
+    }
+
+    /**
+     * Nombre de tuiles demandées et non encore reçues.
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Précharger une tuile dans le cache disque, sur un thread de
+     * préchargement, si elle n'est ni dans le cache mémoire ni déjà demandée.
+     *
+     * <p>
+     * Tant que la tâche n'a pas démarré, une carte qui demande la tuile la
+     * fait passer dans la file de priorité; sinon elle attend la fin du
+     * préchargement, la tuile étant alors décodée pour elle.
+     *
+     * @param key clé de la tuile (d'une couche stockée sur le disque)
+     * @param executor threads de préchargement
+     * @return tâche de préchargement ou null si la tuile est déjà disponible
+     * ou demandée
+     */
+    public Future<?> prefetch(long key, ExecutorService executor) {
+        if (store == null || inFlight.containsKey(key) || memoryCache.contains(key)) {
+            return null;
+        }
+        Request req = new Request(key);
+        req.prefetch = new Prefetch(req);
+        req.prefetch.future = executor.submit(req.prefetch);
+        inFlight.put(key, req);
+        return req.prefetch.future;
+    }
+
+    /**
+     * Abandonner un préchargement non encore démarré et qu'aucune carte
+     * n'attend.
+     *
+     * @param key clé de la tuile
+     */
+    public void cancelPrefetch(long key) {
+        Request req = inFlight.get(key);
+        if (req != null && req.prefetch != null && req.refs == 0
+                && req.prefetch.cancel()) {
+            req.prefetch = null;
+            inFlight.remove(key);
+        }
+    }
+
+    /**
+     * Une carte attend une tuile en cours de préchargement: si la tâche n'a
+     * pas démarré, l'annuler pour placer la demande dans la file de priorité.
+     *
+     * @return vrai si la demande doit être placée dans la file
+     */
+    private boolean promote(Request req) {
+        if (req.prefetch != null && req.prefetch.cancel()) {
+            req.prefetch = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fin d'un préchargement (depuis l'Event Dispatch Thread): la tuile est
+     * décodée si des cartes l'attendent, sinon la demande est oubliée.
+     *
+     * @param data données téléchargées (null si la tuile était déjà dans le
+     * cache disque ou en cas d'échec)
+     */
+    private void prefetched(Request req, ByteBuffer data) {
+        req.prefetch = null;
+        if (inFlight.get(req.key) != req) { // Tuile reçue entre temps
+            return;
+        }
+        if (req.refs == 0) {
+            inFlight.remove(req.key);
+        } else if (data != null) {
+            batch.submit(decodeTile(req.key, data));
+        } else { // Relire le cache disque (ou retenter le téléchargement)
+            schedule(req);
+        }
+    }
+
+    /**
+     * Tâche de préchargement d'une tuile dans le cache disque.
+     *
+     * <p>
+     * Une tâche en attente peut être annulée depuis l'Event Dispatch Thread
+     * (cancel()) jusqu'à son démarrage: la première des deux à se réserver la
+     * demande l'emporte (Future.cancel() ne le permet pas, une tâche en cours
+     * pouvant encore être annulée).
+     */
+    private final class Prefetch implements Runnable {
+
+        private final Request req;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        Future<?> future;
+
+        Prefetch(Request req) {
+            this.req = req;
+        }
+
+        /**
+         * Annuler la tâche si elle n'a pas démarré.
+         *
+         * @return false si la tâche a démarré
+         */
+        boolean cancel() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            future.cancel(false);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) { // Annulée
+                return;
+            }
+            ByteBuffer data = null;
+            if (!store.contains(req.key)) { // (hors de l'Event Dispatch Thread)
+                try {
+                    data = fetcher.download(req.key, store);
+                } catch (IOException ex) {
+                    Logger.getLogger(TileService.class.getName()).log(Level.FINE,
+                            "Préchargement de " + TileKey.toString(req.key), ex);
+                }
+            }
+            final ByteBuffer fetched = data;
+            EventQueue.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    prefetched(req, fetched);
+                }
+            });
+        }
+    }
+
+    /**
+     * Abonnement d'une carte aux tuiles de sa fenêtre.
+     */
+    public final class Subscription {
+
+        private final TileListener listener;
+        // Fenêtre courante (vide à la création)
+        private int layer = -1, zoom = -1;
+        private int rMin = 0, rMax = -1, cMin = 0, cMax = -1;
+        // Centre de l'écran (en tuiles) et tuiles visibles (indéfinis tant
+        // que setFocus() n'a pas été appelée)
+        private double focusRow, focusCol;
+        private int vRMin = 0, vRMax = -1, vCMin = 0, vCMax = -1;
+        // Demandes attendues par cet abonné
+        private final LongTileMap<Request> wanted = new LongTileMap<>();
+        private boolean registered = false;
+
+        private Subscription(TileListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Définir la fenêtre de tuiles affichée.
+         *
+         * <p>
+         * Les demandes sorties de la fenêtre sont libérées (et abandonnées si
+         * aucun autre abonné ne les attend) et seules les tuiles nouvellement
+         * exposées sont demandées, avec une priorité fixée par setFocus().
+         *
+         * @param layer couche
+         * @param zoom niveau IGN
+         * @param tRMin première ligne de tuiles
+         * @param tRMax dernière ligne de tuiles
+         * @param tCMin première colonne de tuiles
+         * @param tCMax dernière colonne de tuiles
+         */
+        public void setWindow(int layer, int zoom, int tRMin, int tRMax,
+                int tCMin, int tCMax) {
+            if (!registered) {
+                subscriptions.add(this);
+                registered = true;
+            }
+            boolean sameLevel = layer == this.layer && zoom == this.zoom;
+            int r, c;
+
+            // Libérer les demandes sorties de la fenêtre
+            for (long k : wanted.keys()) {
+                r = TileKey.row(k);
+                c = TileKey.col(k);
+                if (!sameLevel || r < tRMin || r > tRMax || c < tCMin || c > tCMax) {
+                    release(wanted.remove(k));
+                }
+            }
+
+            // Demander les tuiles manquantes
+            long key;
+            Request req;
+            for (r = tRMin; r <= tRMax; r++) { // Lignes de tuiles
+                for (c = tCMin; c <= tCMax; c++) { // Colonnes de tuiles
+                    key = TileKey.of(layer, zoom, r, c);
+                    if (wanted.containsKey(key)) {
+                        continue;
+                    }
+                    boolean exposed = !sameLevel
+                            || r < rMin || r > rMax || c < cMin || c > cMax;
+                    // (succès et défauts de cache comptabilisés pour les
+                    // seules tuiles nouvellement exposées)
+                    if (exposed ? memoryCache.get(key) != null : memoryCache.contains(key)) {
+                        continue;
+                    }
+                    want(key);
+                }
+            }
+
+            this.layer = layer;
+            this.zoom = zoom;
+            rMin = tRMin;
+            rMax = tRMax;
+            cMin = tCMin;
+            cMax = tCMax;
+        }
+
+        /**
+         * Demander une tuile de la fenêtre absente du cache mémoire.
+         */
+        private void want(long key) {
+            Request req = inFlight.get(key);
+            boolean created = req == null;
+            if (created) { // Tuile attendue par aucun abonné
+                req = new Request(key);
+                inFlight.put(key, req);
+            }
+            req.refs++;
+            wanted.put(key, req);
+            if (created || promote(req)) {
+                schedule(req);
+            } else { // (sans effet si la demande a démarré)
+                scheduler.update(req, priority(req));
+            }
+        }
+
+        /**
+         * Redemander les tuiles visibles absentes du cache mémoire qui ne
+         * sont plus attendues (échec, notamment pendant l'ouverture du
+         * disjoncteur).
+         */
+        private void requeueMissing() {
+            boolean known = vRMax >= vRMin; // (écran inconnu: toute la fenêtre)
+            int r0 = known ? Math.max(rMin, vRMin) : rMin;
+            int r1 = known ? Math.min(rMax, vRMax) : rMax;
+            int c0 = known ? Math.max(cMin, vCMin) : cMin;
+            int c1 = known ? Math.min(cMax, vCMax) : cMax;
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    long key = TileKey.of(layer, zoom, r, c);
+                    if (!wanted.containsKey(key) && !memoryCache.contains(key)) {
+                        want(key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Définir la partie de la fenêtre affichée à l'écran (après une
+         * translation, un zoom ou un redimensionnement): les demandes en
+         * attente sont reclassées sur place, les tuiles visibles les plus
+         * proches du centre de l'écran passant en tête de file.
+         *
+         * @param row ligne (fractionnaire) du centre de l'écran
+         * @param col colonne (fractionnaire) du centre de l'écran
+         * @param tRMin première ligne de tuiles visible
+         * @param tRMax dernière ligne de tuiles visible
+         * @param tCMin première colonne de tuiles visible
+         * @param tCMax dernière colonne de tuiles visible
+         */
+        public void setFocus(double row, double col, int tRMin, int tRMax,
+                int tCMin, int tCMax) {
+            focusRow = row;
+            focusCol = col;
+            vRMin = tRMin;
+            vRMax = tRMax;
+            vCMin = tCMin;
+            vCMax = tCMax;
+            Request req;
+            for (long k : wanted.keys()) {
+                req = wanted.get(k);
+                if (scheduler.update(req, priority(req))) {
+                    fetcher.getMetrics().rescored();
+                }
+            }
+        }
+
+        /**
+         * Priorité d'une tuile de la fenêtre pour cet abonné: carré de la
+         * distance (en tuiles) au centre de l'écran, augmenté de
+         * HIDDEN_PENALTY si la tuile n'est pas visible.
+         */
+        private double score(long key) {
+            int r = TileKey.row(key);
+            int c = TileKey.col(key);
+            if (vRMax < vRMin) { // Écran inconnu: centre de la fenêtre
+                double dr = r - (rMin + rMax) / 2.0;
+                double dc = c - (cMin + cMax) / 2.0;
+                return dr * dr + dc * dc;
+            }
+            double dr = r + 0.5 - focusRow;
+            double dc = c + 0.5 - focusCol;
+            double d2 = dr * dr + dc * dc;
+            if (r < vRMin || r > vRMax || c < vCMin || c > vCMax) {
+                d2 += HIDDEN_PENALTY;
+            }
+            return d2;
+        }
+
+        /**
+         * Libérer toutes les demandes et se désabonner.
+         */
+        public void close() {
+            for (long k : wanted.keys()) {
+                release(wanted.remove(k));
+            }
+            layer = zoom = -1;
+            rMax = cMax = -1;
+            vRMax = vCMax = -1;
+            subscriptions.remove(this);
+            registered = false;
+        }
+
+        /**
+         * Nombre de tuiles de la fenêtre.
+         *
+         * @return
+         */
+        public int getWindowSize() {
+            return (rMax - rMin + 1) * (cMax - cMin + 1);
+        }
+
+        /**
+         * Nombre de tuiles de la fenêtre en cours de récupération.
+         *
+         * @return
+         */
+        public int getPendingCount() {
+            return wanted.size();
+        }
+
+        private boolean covers(long key) {
+            int r = TileKey.row(key);
+            int c = TileKey.col(key);
+            return TileKey.layer(key) == layer && TileKey.zoom(key) == zoom
+                    && r >= rMin && r <= rMax && c >= cMin && c <= cMax;
+        }
+    }
+
+    /**
+     * Priorité d'une demande: la meilleure parmi les abonnés qui l'attendent.
+     */
+    private double priority(Request req) {
+        double best = Double.MAX_VALUE;
+        for (Subscription s : subscriptions) {
+            if (s.wanted.get(req.key) == req) {
+                best = Math.min(best, s.score(req.key));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Changement d'état du disjoncteur (depuis l'Event Dispatch Thread):
+     * programmer un nouvel essai à la fin de son ouverture, redemander les
+     * tuiles visibles manquantes à sa fermeture.
+     */
+    private void breakerChanged(CircuitBreaker.State state) {
+        if (retryTimer != null) {
+            retryTimer.stop();
+            retryTimer = null;
+        }
+        if (state == CircuitBreaker.State.OPEN) {
+            // (marge: la requête d'essai ne doit pas précéder la fin de
+            // l'ouverture)
+            long delay = fetcher.getCircuitBreaker().getRemainingOpenTime() + 100;
+            retryTimer = new Timer((int) Math.min(delay, Integer.MAX_VALUE),
+                    new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    retryTimer = null;
+                    requeueMissing();
+                }
+            });
+            retryTimer.setRepeats(false);
+            retryTimer.start();
+        } else if (state == CircuitBreaker.State.CLOSED) {
+            requeueMissing();
+        }
+    }
+
+    private void requeueMissing() {
+        for (Subscription s : new ArrayList<>(subscriptions)) {
+            s.requeueMissing();
+        }
+    }
+
+    /**
+     * Placer une nouvelle demande dans la file de priorité.
+     *
+     * <p>
+     * Chaque demande ajoutée s'accompagne d'une tâche soumise au moteur de
+     * téléchargement: au démarrage, cette tâche ne traite pas une demande
+     * désignée d'avance mais la demande de plus haute priorité à cet instant.
+     */
+    private void schedule(Request req) {
+        scheduler.offer(req, priority(req));
+        while (!workers.isEmpty() && workers.peekFirst().isDone()) {
+            workers.removeFirst();
+        }
+        workers.addLast(fetcher.submit(worker, batch));
+    }
+
+    /**
+     * Un abonné n'attend plus une tuile.
+     */
+    private void release(Request req) {
+        if (--req.refs == 0) {
+            if (unschedule(req)) {
+                inFlight.remove(req.key);
+                fetcher.getMetrics().cancelled();
+            }
+        } else {
+            scheduler.update(req, priority(req));
+        }
+    }
+
+    /**
+     * Retirer une demande non démarrée de la file de priorité, avec l'une des
+     * tâches de téléchargement en surnombre.
+     *
+     * @return false si la demande a déjà démarré
+     */
+    private boolean unschedule(Request req) {
+        if (!scheduler.remove(req)) {
+            return false;
+        }
+        while (!workers.isEmpty()) {
+            if (workers.removeLast().cancel(false)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Placer une tuile reçue dans le cache mémoire et prévenir les abonnés
+     * (depuis l'Event Dispatch Thread).
+     */
+    private void deliver(LoadedTile t) {
+        Request req = inFlight.get(t.key);
+        if (TileKey.layer(t.key) == TileKey.LAYER_BLEND && t.img != null
+                && t.generation != blendGeneration) { // Opacité modifiée entre temps
+            if (req != null && !scheduler.contains(req)) {
+                schedule(req); // Composer à nouveau
+            }
+            return;
+        }
+        if (req != null) {
+            unschedule(req); // (tuile revalidée avant son téléchargement)
+            inFlight.remove(t.key);
+        }
+        if (t.img != null) {
+            memoryCache.put(t.key, t.img);
+            fallbackCache.remove(t.key); // (substitution devenue inutile)
+            improveFallbacks(t.key);
+        }
+        for (Subscription s : new ArrayList<>(subscriptions)) {
+            s.wanted.remove(t.key);
+            if (t.img != null && s.covers(t.key)) {
+                s.listener.tileReady(t.key);
+            }
+        }
+    }
+
+    /**
+     * Récupérer les données d'une tuile depuis le cache disque ou les
+     * télécharger (depuis un thread du moteur de téléchargement).
+     *
+     * @param key clé de la tuile
+     * @return tâche de décodage de la tuile (l'image est null en cas d'échec)
+     */
+    private Callable<LoadedTile> fetchTile(final long key) {
+        if (TileKey.layer(key) == TileKey.LAYER_BLEND) {
+            return blendTile(key);
+        }
+        return decodeTile(key, fetchData(key));
+    }
+
+    /**
+     * Récupérer les données d'une tuile depuis le cache disque ou les
+     * télécharger (depuis un thread du moteur de téléchargement).
+     *
+     * @param key clé de la tuile
+     * @return données de la tuile (ou null en cas d'échec)
+     */
+    private ByteBuffer fetchData(long key) {
+        ByteBuffer data = null;
+        try {
+            if (store != null) { // Récupérer depuis le cache
+                data = store.get(key);
+            }
+            if (data == null) { // Télécharger (et sauvegarder dans le cache)
+                data = fetcher.download(key, store);
+            } else if (System.currentTimeMillis() - store.getFetchTime(key)
+                    > refreshDelay && fetcher.isServerAvailable()) {
+                // Tuile ancienne: l'afficher tout en la revalidant
+                revalidate(key);
+            }
+        } catch (ServerUnavailableException ex) { // Affichage du cache seul
+            Logger.getLogger(TileService.class.getName()).log(Level.FINE, null, ex);
+        } catch (IOException ex) {
+            Logger.getLogger(TileService.class.getName()).log(Level.WARNING, null, ex);
+        }
+        return data;
+    }
+
+    /**
+     * Récupérer les deux tuiles d'une tuile composée (vue aérienne et carte)
+     * depuis un thread du moteur de téléchargement; celles déjà présentes
+     * dans le cache mémoire ne sont ni relues ni décodées.
+     *
+     * @param key clé de la tuile composée
+     * @return tâche de décodage et de composition des deux tuiles
+     */
+    private Callable<LoadedTile> blendTile(final long key) {
+        int zoom = TileKey.zoom(key);
+        int r = TileKey.row(key);
+        int c = TileKey.col(key);
+        long orthoKey = TileKey.of(TileKey.LAYER_ORTHO, zoom, r, c);
+        long mapsKey = TileKey.of(TileKey.LAYER_MAPS, zoom, r, c);
+        final ImageIcon orthoImg = memoryCache.peek(orthoKey);
+        final ImageIcon mapsImg = memoryCache.peek(mapsKey);
+        final ByteBuffer orthoData = orthoImg == null ? fetchData(orthoKey) : null;
+        final ByteBuffer mapsData = mapsImg == null ? fetchData(mapsKey) : null;
+        return new Callable<LoadedTile>() {
+            @Override
+            public LoadedTile call() {
+                if ((orthoImg == null && orthoData == null)
+                        || (mapsImg == null && mapsData == null)) {
+                    return new LoadedTile(key, null);
+                }
+                try {
+                    long start = System.nanoTime();
+                    Image under = orthoImg != null ? orthoImg.getImage()
+                            : TileFetcher.decode(orthoData);
+                    Image over = mapsImg != null ? mapsImg.getImage()
+                            : TileFetcher.decode(mapsData);
+                    int generation = blendGeneration;
+                    BufferedImage img = TileFetcher.blend(under, over, blendOpacity);
+                    fetcher.getMetrics().decoded(System.nanoTime() - start);
+                    fetcher.tileFetched();
+                    return new LoadedTile(key, new ImageIcon(img), generation);
+                } catch (IOException ex) {
+                    Logger.getLogger(TileService.class.getName()).log(Level.WARNING,
+                            TileKey.toString(key), ex);
+                    return new LoadedTile(key, null);
+                }
+            }
+        };
+    }
+
+    /**
+     * Revalider en tâche de fond une tuile du cache disque: la nouvelle
+     * version n'est décodée et transmise aux abonnés que si elle a changé.
+     *
+     * @param key clé de la tuile
+     */
+    private void revalidate(final long key) {
+        fetcher.submit(new Callable<Callable<LoadedTile>>() {
+            @Override
+            public Callable<LoadedTile> call() {
+                ByteBuffer fresh = null;
+                try {
+                    fresh = fetcher.revalidate(key, store);
+                } catch (IOException ex) { // Serveur injoignable: garder la tuile
+                    Logger.getLogger(TileService.class.getName()).log(Level.FINE,
+                            TileKey.toString(key), ex);
+                }
+                if (fresh == null) { // Inchangée (304)
+                    return NO_TILE;
+                }
+                return decodeTile(key, fresh);
+            }
+        }, batch);
+    }
+
+    /**
+     * Tâche de décodage d'une tuile (sur un thread de décodage).
+     *
+     * @param key clé de la tuile
+     * @param jpeg données de la tuile (ou null en cas d'échec)
+     * @return
+     */
+    private Callable<LoadedTile> decodeTile(final long key, final ByteBuffer jpeg) {
+        return new Callable<LoadedTile>() {
+            @Override
+            public LoadedTile call() {
+                if (jpeg == null) {
+                    return new LoadedTile(key, null);
+                }
+                try {
+                    // Décoder puis convertir au format de l'écran
+                    long start = System.nanoTime();
+                    BufferedImage img = TileFetcher.toCompatible(TileFetcher.decode(jpeg));
+                    fetcher.getMetrics().decoded(System.nanoTime() - start);
+                    fetcher.tileFetched();
+                    return new LoadedTile(key, new ImageIcon(img));
+                } catch (IOException ex) {
+                    Logger.getLogger(TileService.class.getName()).log(Level.WARNING,
+                            TileKey.toString(key), ex);
+                    return new LoadedTile(key, null);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<html>%.1f tuiles/s, %d en attente"
+                + "<br>Mémoire: %s<br>Disque: %s<br>Source: %s (%s)</html>",
+                fetcher.getThroughput(), fetcher.getQueueDepth(), memoryCache,
+                store == null ? "-" : store, fetcher.getSource().getName(),
+                fetcher.isServerAvailable() ? "disponible"
+                : "indisponible (cache seul)");
+    }
+
+    /**
+     * Tuile demandée au moteur de téléchargement, partagée par les abonnés
+     * qui l'attendent.
+     *
+     * <p>
+     * Tant que son téléchargement n'a pas démarré, la demande reste dans la
+     * file de priorité: son score peut y être modifié et elle peut en être
+     * retirée lorsque plus aucun abonné ne l'attend.
+     */
+    private static final class Request extends TileScheduler.Entry {
+
+        final long key;
+        int refs = 0; // nombre d'abonnés
+        Prefetch prefetch; // préchargement en attente ou en cours (ou null)
+
+        Request(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Tuile décodée associée à sa clé, transmise à l'Event Dispatch Thread.
+     */
+    static final class LoadedTile {
+
+        final long key;
+        final ImageIcon img;
+        final int generation; // (tuiles composées) réglage de l'opacité
+
+        LoadedTile(long key, ImageIcon img) {
+            this(key, img, 0);
+        }
+
+        LoadedTile(long key, ImageIcon img, int generation) {
+            this.key = key;
+            this.img = img;
+            this.generation = generation;
+        }
+    }
+}
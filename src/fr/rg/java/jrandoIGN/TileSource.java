@@ -0,0 +1,70 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Origine des tuiles de la carte.
+ *
+ * <p>
+ * Les tuiles sont désignées par leur clé (couche, niveau, ligne, colonne
+ * dans la grille WMTS "PM" de l'IGN). Les implémentations disponibles sont:
+ * <ul>
+ * <li>WmtsTileSource: service WMTS de l'IGN (ou compatible), interrogé par le
+ * moteur de téléchargement avec nouvelles tentatives et disjoncteur;</li>
+ * <li>DirectoryTileSource: arborescence locale couche/zoom/colonne/ligne;</li>
+ * <li>MBTilesTileSource: fichier MBTiles (base SQLite).</li>
+ * </ul>
+ *
+ * <p>
+ * Les sources locales permettent d'afficher la carte hors-ligne, sans
+ * latence réseau, et de mesurer les performances de l'affichage sur des
+ * données reproductibles.
+ *
+ * @see TileFetcher#setSource(TileSource)
+ */
+public interface TileSource {
+
+    /**
+     * Nom de la source (pour les journaux et l'info-bulle de statistiques).
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * Indiquer si la source est distante: ses tuiles sont alors conservées
+     * dans le cache disque.
+     *
+     * @return
+     */
+    boolean isRemote();
+
+    /**
+     * Indiquer si la source distingue les couches (carte, vue aérienne).
+     * Sinon la même tuile est renvoyée quelle que soit la couche demandée et
+     * la carte ne peut être superposée à la vue aérienne
+     * (TileKey.LAYER_BLEND).
+     *
+     * @return
+     */
+    boolean hasLayers();
+
+    /**
+     * Lire les données d'une tuile (peut être appelée simultanément depuis
+     * plusieurs threads).
+     *
+     * @param key clé de la tuile
+     * @return données de l'image (JPEG ou PNG) ou null si la source ne
+     * contient pas la tuile
+     * @throws IOException
+     */
+    ByteBuffer getTile(long key) throws IOException;
+
+    /**
+     * Libérer les ressources de la source.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,165 @@
+package fr.rg.java.jrandoIGN;
+
+import java.util.Arrays;
+
+/**
+ * Grille uniforme indexant les segments ou les points d'une trace projetée
+ * (en pixels de la carte), afin de ne dessiner que ce qui recoupe la zone à
+ * rafraîchir.
+ *
+ * <p>
+ * Chaque cellule liste les éléments dont le rectangle englobant la recoupe.
+ * Les listes sont rangées bout à bout dans un seul tableau (deux passes à la
+ * construction): la grille ne crée aucun objet par élément. La taille des
+ * cellules (au moins celle d'une tuile) est doublée tant que leur nombre
+ * dépasse MAX_CELLS.
+ *
+ * <p>
+ * Les requêtes réutilisent un tableau de marquage: elles doivent être
+ * effectuées depuis un seul thread (l'Event Dispatch Thread).
+ */
+public class TrackGrid {
+
+    private static final double MIN_CELL_SIZE = 256;
+    private static final int MAX_CELLS = 16_384;
+
+    private final double x0, y0; // origine de la grille
+    private final double cellSize;
+    private final int cols, rows;
+    private final int[] cellStart; // début de la liste de chaque cellule
+    private final int[] items; // listes des éléments des cellules
+    private final int[] stamp; // dernière requête ayant retenu l'élément
+    private int query = 0;
+
+    /**
+     * Indexer les segments d'une ligne brisée: le segment k relie les sommets
+     * k et k+1.
+     *
+     * @param x abscisses des sommets
+     * @param y ordonnées des sommets
+     * @param n nombre de sommets
+     * @return
+     */
+    public static TrackGrid ofSegments(float[] x, float[] y, int n) {
+        return new TrackGrid(x, y, n, true);
+    }
+
+    /**
+     * Indexer des points.
+     *
+     * @param x abscisses
+     * @param y ordonnées
+     * @param n nombre de points
+     * @return
+     */
+    public static TrackGrid ofPoints(float[] x, float[] y, int n) {
+        return new TrackGrid(x, y, n, false);
+    }
+
+    private TrackGrid(float[] x, float[] y, int n, boolean segments) {
+        int nItems = segments ? Math.max(0, n - 1) : n;
+        // Emprise des sommets
+        double xMin = Double.POSITIVE_INFINITY, yMin = Double.POSITIVE_INFINITY;
+        double xMax = Double.NEGATIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            xMin = Math.min(xMin, x[i]);
+            xMax = Math.max(xMax, x[i]);
+            yMin = Math.min(yMin, y[i]);
+            yMax = Math.max(yMax, y[i]);
+        }
+        if (n == 0) {
+            xMin = xMax = yMin = yMax = 0;
+        }
+        double size = MIN_CELL_SIZE;
+        while ((long) cells(xMax - xMin, size) * cells(yMax - yMin, size) > MAX_CELLS) {
+            size *= 2;
+        }
+        x0 = xMin;
+        y0 = yMin;
+        cellSize = size;
+        cols = cells(xMax - xMin, size);
+        rows = cells(yMax - yMin, size);
+
+        // Première passe: nombre d'éléments par cellule
+        cellStart = new int[cols * rows + 1];
+        for (int k = 0; k < nItems; k++) {
+            int l = segments ? k + 1 : k;
+            int c0 = col(Math.min(x[k], x[l])), c1 = col(Math.max(x[k], x[l]));
+            int r0 = row(Math.min(y[k], y[l])), r1 = row(Math.max(y[k], y[l]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellStart[r * cols + c + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < cols * rows; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        // Seconde passe: remplissage
+        items = new int[cellStart[cols * rows]];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int k = 0; k < nItems; k++) {
+            int l = segments ? k + 1 : k;
+            int c0 = col(Math.min(x[k], x[l])), c1 = col(Math.max(x[k], x[l]));
+            int r0 = row(Math.min(y[k], y[l])), r1 = row(Math.max(y[k], y[l]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    items[fill[r * cols + c]++] = k;
+                }
+            }
+        }
+        stamp = new int[nItems];
+    }
+
+    private static int cells(double extent, double size) {
+        return (int) (extent / size) + 1;
+    }
+
+    private int col(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - x0) / cellSize)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - y0) / cellSize)));
+    }
+
+    /**
+     * Éléments dont le rectangle englobant peut recouper un rectangle.
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @return indices croissants des éléments (segments ou points)
+     */
+    public int[] query(double xMin, double yMin, double xMax, double yMax) {
+        if (stamp.length == 0 || xMax < x0 || yMax < y0
+                || xMin > x0 + cols * cellSize || yMin > y0 + rows * cellSize) {
+            return new int[0];
+        }
+        if (++query == 0) { // Débordement du compteur
+            Arrays.fill(stamp, 0);
+            query = 1;
+        }
+        int[] found = new int[16];
+        int n = 0;
+        for (int r = row(yMin); r <= row(yMax); r++) {
+            for (int c = col(xMin); c <= col(xMax); c++) {
+                int cell = r * cols + c;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int k = items[i];
+                    if (stamp[k] != query) {
+                        stamp[k] = query;
+                        if (n == found.length) {
+                            found = Arrays.copyOf(found, 2 * n);
+                        }
+                        found[n++] = k;
+                    }
+                }
+            }
+        }
+        found = Arrays.copyOf(found, n);
+        Arrays.sort(found);
+        return found;
+    }
+}
@@ -0,0 +1,137 @@
+package fr.rg.java.jrandoIGN;
+
+import java.util.Arrays;
+
+/**
+ * Pyramide de simplification d'une trace (algorithme de Douglas-Peucker),
+ * un niveau par niveau de zoom IGN.
+ *
+ * <p>
+ * L'algorithme n'est exécuté qu'une fois: chaque point reçoit l'écart (en
+ * mètres WMTS) à partir duquel il est conservé, borné par celui du point qui
+ * l'a fait apparaître afin que les niveaux soient emboîtés. Un niveau retient
+ * alors les points dont l'écart dépasse la tolérance, exprimée en pixels de la
+ * carte puis convertie selon la dimension des tuiles de ce niveau.
+ *
+ * <p>
+ * Le premier et le dernier point sont toujours conservés. Le calcul, en
+ * O(n log n) pour une trace ordinaire, peut être effectué hors de l'Event
+ * Dispatch Thread; l'objet est ensuite immuable.
+ */
+public class TrackSimplifier {
+
+    // Niveaux de zoom IGN couverts par la pyramide
+    public static final int MAX_ZOOM = 18;
+
+    private static final int TILE_PIXEL_DIM = 256;
+
+    private final int nPoints;
+    private final int[][] levels; // indices conservés (indice: niveau de zoom)
+
+    /**
+     * Calculer la pyramide d'une trace.
+     *
+     * @param x abscisses WMTS des points (m)
+     * @param y ordonnées WMTS des points (m)
+     * @param tolerancePx écart maximal entre la trace simplifiée et la trace
+     * entière (en pixels de la carte)
+     */
+    public TrackSimplifier(double[] x, double[] y, double tolerancePx) {
+        nPoints = x.length;
+        double[] importance = computeImportance(x, y);
+        levels = new int[MAX_ZOOM + 1][];
+        int[] kept = new int[nPoints];
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            double tolerance = tolerancePx * WMTS.getTileDim(zoom) / TILE_PIXEL_DIM;
+            int n = 0;
+            for (int i = 0; i < nPoints; i++) {
+                if (importance[i] > tolerance) {
+                    kept[n++] = i;
+                }
+            }
+            levels[zoom] = Arrays.copyOf(kept, n);
+        }
+    }
+
+    /**
+     * Écart associé à chaque point par l'algorithme de Douglas-Peucker
+     * (version itérative: la profondeur de récursion pourrait atteindre le
+     * nombre de points).
+     */
+    private static double[] computeImportance(double[] x, double[] y) {
+        int n = x.length;
+        double[] importance = new double[n];
+        if (n == 0) {
+            return importance;
+        }
+        importance[0] = Double.POSITIVE_INFINITY;
+        importance[n - 1] = Double.POSITIVE_INFINITY;
+        // Pile des segments à examiner (début, fin)
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int b = stack[--top];
+            int a = stack[--top];
+            if (b - a < 2) {
+                continue;
+            }
+            int kMax = a + 1;
+            double dMax = -1;
+            for (int k = a + 1; k < b; k++) {
+                double d = segmentDistance(x[k], y[k], x[a], y[a], x[b], y[b]);
+                if (d > dMax) {
+                    dMax = d;
+                    kMax = k;
+                }
+            }
+            // Emboîtement: un point n'est pas plus important que ceux qui
+            // délimitent son segment
+            importance[kMax] = Math.min(dMax, Math.min(importance[a], importance[b]));
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            stack[top++] = a;
+            stack[top++] = kMax;
+            stack[top++] = kMax;
+            stack[top++] = b;
+        }
+        return importance;
+    }
+
+    /**
+     * Distance d'un point au segment [(ax, ay), (bx, by)] (les traces en
+     * boucle ont des extrémités confondues).
+     */
+    private static double segmentDistance(double px, double py,
+            double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len2));
+        double ex = px - ax - t * dx;
+        double ey = py - ay - t * dy;
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * Nombre de points de la trace entière.
+     *
+     * @return
+     */
+    public int getPointCount() {
+        return nPoints;
+    }
+
+    /**
+     * Indices (croissants) des points à tracer à un niveau de zoom.
+     *
+     * @param zoom niveau de zoom IGN
+     * @return indices dans la trace (à ne pas modifier)
+     */
+    public int[] getIndices(int zoom) {
+        return levels[Math.max(0, Math.min(MAX_ZOOM, zoom))];
+    }
+}
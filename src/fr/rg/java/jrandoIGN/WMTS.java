@@ -85,6 +85,28 @@ public class WMTS {
         return LATMIN_MERCARTOR - mY;
     }
 
+    /**
+     * Calculer l'abscisse Web Mercator (EPSG:3857) correspondant à une
+     * abscisse WMTS.
+     *
+     * @param x abscisse WMTS (en mètres)
+     * @return abscisse Web Mercator (en mètres)
+     */
+    public static double wmtsXToMercator(double x) {
+        return x - Math.PI * RAYON_TERRE;
+    }
+
+    /**
+     * Calculer l'ordonnée Web Mercator (EPSG:3857) correspondant à une
+     * ordonnée WMTS.
+     *
+     * @param y ordonnée WMTS (en mètres)
+     * @return ordonnée Web Mercator (en mètres)
+     */
+    public static double wmtsYToMercator(double y) {
+        return Math.PI * RAYON_TERRE - y;
+    }
+
     /**
      * Calculer la longitude correspondant à une abscisse WMTS.
      * @param X
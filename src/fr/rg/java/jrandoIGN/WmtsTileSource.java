@@ -0,0 +1,158 @@
+package fr.rg.java.jrandoIGN;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.prefs.Preferences;
+
+/**
+ * Service WMTS de l'IGN (ou service compatible: miroir, serveur local de
+ * test).
+ *
+ * <p>
+ * La clé de développement IGN et le serveur mandataire sont lus dans les
+ * préférences à chaque requête: leur modification est prise en compte sans
+ * redémarrage.
+ */
+public class WmtsTileSource implements TileSource {
+
+    // Délais de connexion et de lecture (ms)
+    private static final int CONNECT_TIMEOUT = 10_000;
+    private static final int READ_TIMEOUT = 20_000;
+
+    // Nom des couches WMTS (indice: couche de TileKey)
+    private static final String[] LAYER_NAMES = {
+        "GEOGRAPHICALGRIDSYSTEMS.MAPS", "ORTHOIMAGERY.ORTHOPHOTOS"};
+
+    // Adresse du service (null: service de l'IGN avec la clé des préférences)
+    private final String url;
+
+    /**
+     * Service WMTS de l'IGN.
+     */
+    public WmtsTileSource() {
+        this(null);
+    }
+
+    /**
+     * Service WMTS compatible avec celui de l'IGN.
+     *
+     * @param url adresse du service (ex: http://localhost:8080/wmts) ou null
+     * pour le service de l'IGN
+     */
+    public WmtsTileSource(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public String getName() {
+        return url == null ? "IGN WMTS" : url;
+    }
+
+    @Override
+    public boolean hasLayers() {
+        return true;
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    /**
+     * Adresse de la requête GetTile d'une tuile.
+     *
+     * @param key clé de la tuile
+     * @return
+     * @throws IOException
+     */
+    public URL getTileUrl(long key) throws IOException {
+        String base = url;
+        if (base == null) { // Récupérer la clé IGN
+            Preferences prefs = Preferences.userNodeForPackage(IGNMap.class);
+            base = "https://wxs.ign.fr/"
+                    + prefs.get(IGNMap.KEY_CLE_IGN, IGNMap.CLE_IGN_DEFAULT) + "/wmts";
+        }
+        int layer = TileKey.layer(key);
+        if (layer < 0 || layer >= LAYER_NAMES.length) {
+            throw new IOException("Couche inconnue du service WMTS: "
+                    + TileKey.toString(key));
+        }
+        return new URL(base + "/?"
+                + "SERVICE=WMTS&REQUEST=GetTile&VERSION=1.0.0"
+                + "&LAYER=" + LAYER_NAMES[layer]
+                + "&STYLE=normal"
+                + "&TILEMATRIXSET=PM&TILEMATRIX=" + TileKey.zoom(key)
+                + "&TILEROW=" + TileKey.row(key) + "&TILECOL=" + TileKey.col(key)
+                + "&FORMAT=image/jpeg");
+    }
+
+    /**
+     * Préparer la requête d'une tuile (serveur mandataire des préférences,
+     * délais).
+     *
+     * @param key clé de la tuile
+     * @return connexion non encore établie
+     * @throws IOException
+     */
+    public HttpURLConnection openConnection(long key) throws IOException {
+        URL tileUrl = getTileUrl(key);
+        Preferences prefs = Preferences.userNodeForPackage(IGNMap.class);
+        HttpURLConnection connection;
+        String proxyHostname = prefs.get(DesktopFrame.PROXY_HOSTNAME_KEY, "");
+        if (!"".equalsIgnoreCase(proxyHostname)) { // utiliser un proxy
+            int proxyPortNum = Integer.parseInt(
+                    prefs.get(DesktopFrame.PROXY_PORT_NUMBER_KEY, "0"));
+            connection = (HttpURLConnection) tileUrl.openConnection(new Proxy(Proxy.Type.HTTP,
+                    new InetSocketAddress(proxyHostname, proxyPortNum)));
+        } else { // Pas de proxy
+            connection = (HttpURLConnection) tileUrl.openConnection();
+        }
+        connection.setRequestProperty("Referer", "http://localhost/IGN/");
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection;
+    }
+
+    /**
+     * Télécharger une tuile en une seule requête (sans cache, nouvelle
+     * tentative ni disjoncteur: voir TileFetcher.download() pour l'usage
+     * courant).
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public ByteBuffer getTile(long key) throws IOException {
+        HttpURLConnection connection = openConnection(key);
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (code >= 400) {
+            throw new IOException("Réponse " + code + ": " + connection.getURL());
+        }
+        try (InputStream in = connection.getInputStream()) {
+            String type = connection.getContentType();
+            if (type == null || !type.startsWith("image/")) { // Erreur du serveur
+                throw new IOException("Réponse de type " + type + ": "
+                        + connection.getURL());
+            }
+            return ByteBuffer.wrap(in.readAllBytes());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}